@@ -36,6 +36,7 @@ import java.util.WeakHashMap;
 
 import net.majorkernelpanic.http.TinyHttpServer;
 import net.majorkernelpanic.spydroid.SpydroidApplication;
+import net.majorkernelpanic.streaming.ResourceGovernor;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.rtsp.UriParser;
 
@@ -262,7 +263,17 @@ public class CustomHttpServer extends TinyHttpServer {
 						}
 						if (mSessionList[id].session == null || b) {
 							// Parses URI and creates the Session
-							mSessionList[id].session = UriParser.parse(uri);
+							Session session = UriParser.parse(uri);
+							// Nothing is encoded beyond the budget of the device, the client may come back later
+							if (ResourceGovernor.getInstance().admit(session) != ResourceGovernor.ADMITTED) {
+								// Session.release() would quit the thread shared by all sessions
+								session.syncStop();
+								mSessionList[id].uri = "";
+								response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+								response.setHeader("Retry-After", String.valueOf(ResourceGovernor.getInstance().getRetryAfter()));
+								return;
+							}
+							mSessionList[id].session = session;
 							mSessions.put(mSessionList[id].session, null);
 						} 
 
@@ -303,6 +314,10 @@ public class CustomHttpServer extends TinyHttpServer {
 
 			} catch (Exception e) {
 				mSessionList[id].uri = "";
+				// Gives back the place the session was admitted with
+				if (mSessionList[id].session != null && !mSessionList[id].session.isStreaming()) {
+					mSessionList[id].session.syncStop();
+				}
 				response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
 				Log.e(TAG,e.getMessage()!=null?e.getMessage():"An unknown error occurred");
 				e.printStackTrace();
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.util.Log;
+
+/**
+ * Remembers what the streams find when they are configured (the SPS and PPS of the encoder, 
+ * the mode and the framerate that actually work...), so that the next call to
+ * {@link Session#syncConfigure()} with the same settings returns right away.
+ * Finding it may take seconds: the camera is opened, the encoder is tested or a test file is recorded.
+ * 
+ * Entries are indexed by a key that holds all the settings the result depends on.
+ * Only one configuration is searched at a time, streams asking for the same key wait for the result.
+ */
+public class ConfigCache {
+
+	public final static String TAG = "ConfigCache";
+
+	/** Finds the configuration when it is not cached. */
+	public interface Loader<T> {
+		T load() throws IOException;
+	}
+
+	private static final ConcurrentHashMap<String,Object> sEntries = new ConcurrentHashMap<String,Object>();
+	private static final Object sLock = new Object();
+
+	private ConfigCache() {}
+
+	/**
+	 * Returns the cached configuration, or loads and caches it.
+	 * @param key The settings the configuration depends on
+	 * @param loader Called if the configuration is not cached
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T get(String key, Loader<T> loader) throws IOException {
+		T value = (T) sEntries.get(key);
+		if (value != null) return value;
+		synchronized (sLock) {
+			// It may have been loaded while we were waiting
+			value = (T) sEntries.get(key);
+			if (value != null) return value;
+			long now = System.currentTimeMillis();
+			value = loader.load();
+			if (value != null) sEntries.put(key, value);
+			Log.d(TAG, "Configuration "+key+" found in "+(System.currentTimeMillis()-now)+" ms");
+			return value;
+		}
+	}
+
+	/** Returns true if the configuration is cached. */
+	public static boolean contains(String key) {
+		return sEntries.containsKey(key);
+	}
+
+	/** Forgets a configuration, it will be searched again the next time a stream needs it. */
+	public static void invalidate(String key) {
+		if (sEntries.remove(key) != null) Log.d(TAG, "Configuration "+key+" invalidated");
+	}
+
+	/** Forgets all configurations, when the encoder or the camera changes for instance. */
+	public static void clear() {
+		sEntries.clear();
+	}
+
+}
@@ -22,10 +22,17 @@ package net.majorkernelpanic.streaming;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.GopCache;
+import net.majorkernelpanic.streaming.rtp.PacketRing;
+import net.majorkernelpanic.streaming.rtp.RtpDestination;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import net.majorkernelpanic.streaming.video.VideoStream;
 import android.annotation.SuppressLint;
 import android.media.MediaCodec;
@@ -67,6 +74,12 @@ public abstract class MediaStream implements Stream {
 	protected LocalSocket mReceiver, mSender = null;
 	private LocalServerSocket mLss = null;
 	private int mSocketId, mTTL = 64;
+	private double mFecOverhead = 0;
+	private int mMtu = RtpSocket.MTU;
+	private byte mTransport = RtpSocket.TRANSPORT_SOCKET;
+	private int mBurstSize = RtpSocket.DEFAULT_BURST_SIZE;
+	private PacketRing.WaitStrategy mWaitStrategy = PacketRing.WaitStrategy.DEFAULT;
+	private int mGopCacheSize = GopCache.DEFAULT_MAX_SIZE, mReplayRate = RtpSocket.DEFAULT_REPLAY_RATE;
 
 	protected MediaRecorder mMediaRecorder;
 	protected MediaCodec mMediaCodec;
@@ -125,6 +138,57 @@ public abstract class MediaStream implements Stream {
 		mRtcpPort = rtcpPort;
 	}	
 
+	/**
+	 * Sends the stream to one more receiver without restarting the encoder.
+	 * The stream is packetized once and each packet is sent to every receiver.
+	 * @param dest The address of the receiver
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 * @return The new destination, needed to remove it with {@link #removeDestination(RtpDestination)}
+	 */
+	public RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		return mPacketizer.getRtpSocket().addDestination(dest, rtpPort, rtcpPort);
+	}
+
+	/**
+	 * Adds a receiver that receives nothing until {@link #play(RtpDestination)} is called.
+	 * @see #addDestination(InetAddress, int, int)
+	 */
+	public RtpDestination addHeldDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		return mPacketizer.getRtpSocket().addDestination(dest, rtpPort, rtcpPort, true);
+	}
+
+	/**
+	 * Starts sending the stream to a receiver added with {@link #addHeldDestination(InetAddress, int, int)}.
+	 * @return True if the cached group of pictures is replayed to the receiver first
+	 * @see RtpSocket#play(RtpDestination)
+	 */
+	public boolean play(RtpDestination destination) {
+		return mPacketizer.getRtpSocket().play(destination);
+	}
+
+	/**
+	 * Stops sending the stream to a receiver without removing it, the stream itself keeps running.
+	 * {@link #play(RtpDestination)} resumes it.
+	 * @see RtpSocket#pause(RtpDestination)
+	 */
+	public void pause(RtpDestination destination) {
+		mPacketizer.getRtpSocket().pause(destination);
+	}
+
+	/**
+	 * Stops sending the stream to a receiver.
+	 * @param destination A destination returned by {@link #addDestination(InetAddress, int, int)}
+	 */
+	public void removeDestination(RtpDestination destination) {
+		mPacketizer.getRtpSocket().removeDestination(destination);
+	}
+
+	/** Returns the number of receivers of the stream. */
+	public int getDestinationCount() {
+		return mPacketizer.getRtpSocket().getDestinationCount();
+	}
+
 	/**
 	 * Sets the Time To Live of packets sent over the network.
 	 * @param ttl The time to live
@@ -134,6 +198,114 @@ public abstract class MediaStream implements Stream {
 		mTTL = ttl;
 	}
 
+	/**
+	 * Enables forward error correction: ULPFEC packets (RFC 5109) carrying the XOR 
+	 * parity of groups of RTP packets are sent along with the stream.
+	 * Changes will be taken into account the next time the stream is started.
+	 * @param overhead Ratio between the FEC packets and the media packets, 0 to disable FEC
+	 */
+	public void setFecOverhead(double overhead) {
+		mFecOverhead = overhead;
+	}
+
+	/** Returns the ratio set with {@link #setFecOverhead(double)}. */
+	public double getFecOverhead() {
+		return mFecOverhead;
+	}
+
+	/**
+	 * Sets the MTU of the path to the receivers, IP and UDP headers included.
+	 * Changes will be taken into account the next time the stream is started.
+	 * @param mtu The MTU, between {@link RtpSocket#MIN_MTU} and {@link RtpSocket#MAX_MTU}
+	 */
+	public void setMtu(int mtu) {
+		if (mtu<RtpSocket.MIN_MTU || mtu>RtpSocket.MAX_MTU) throw new IllegalArgumentException("The MTU must be between "+RtpSocket.MIN_MTU+" and "+RtpSocket.MAX_MTU+" !");
+		mMtu = mtu;
+	}
+
+	/** Returns the MTU set with {@link #setMtu(int)}. */
+	public int getMtu() {
+		return mMtu;
+	}
+
+	/**
+	 * Selects the API used to send the packets over the network. The local RTP port 
+	 * changes, so it must be called before the ports are given to the receivers.
+	 * @param transport {@link RtpSocket#TRANSPORT_SOCKET} or {@link RtpSocket#TRANSPORT_CHANNEL}
+	 * @throws IOException If the channel could not be opened
+	 */
+	public void setTransport(byte transport) throws IOException {
+		mTransport = transport;
+		if (mPacketizer != null) mPacketizer.getRtpSocket().setTransport(transport);
+	}
+
+	/** Returns the API set with {@link #setTransport(byte)}. */
+	public byte getTransport() {
+		return mTransport;
+	}
+
+	/**
+	 * Sets the maximum number of packets sent in a row by the sender thread.
+	 * @param burstSize The number of packets, 0 to only bound the bursts in time
+	 * @see RtpSocket#setBurstSize(int)
+	 */
+	public void setBurstSize(int burstSize) {
+		if (burstSize<0) throw new IllegalArgumentException("The burst size must be positive !");
+		mBurstSize = burstSize;
+		if (mPacketizer != null) mPacketizer.getRtpSocket().setBurstSize(burstSize);
+	}
+
+	/** Returns the size set with {@link #setBurstSize(int)}. */
+	public int getBurstSize() {
+		return mBurstSize;
+	}
+
+	/**
+	 * Sets how the packetizer waits for the sender thread when the FIFO of the RTP socket is full.
+	 * @see RtpSocket#setWaitStrategy(PacketRing.WaitStrategy)
+	 */
+	public void setWaitStrategy(PacketRing.WaitStrategy strategy) {
+		if (strategy == null) throw new IllegalArgumentException("The strategy can't be null !");
+		mWaitStrategy = strategy;
+		if (mPacketizer != null) mPacketizer.getRtpSocket().setWaitStrategy(strategy);
+	}
+
+	/** Returns the strategy set with {@link #setWaitStrategy(PacketRing.WaitStrategy)}. */
+	public PacketRing.WaitStrategy getWaitStrategy() {
+		return mWaitStrategy;
+	}
+
+	/**
+	 * Sets the cap of the cache of the group of pictures replayed to the viewers that join the stream.
+	 * Changes will be taken into account the next time the stream is started.
+	 * @param size The cap in bytes, 0 to disable the cache, at most {@link GopCache#MAX_SIZE}
+	 * @see RtpSocket#setGopCacheSize(int)
+	 */
+	public void setGopCacheSize(int size) {
+		if (size<0 || size>GopCache.MAX_SIZE) throw new IllegalArgumentException("The size of the cache must be between 0 and "+GopCache.MAX_SIZE+" !");
+		mGopCacheSize = size;
+	}
+
+	/** Returns the cap set with {@link #setGopCacheSize(int)}. */
+	public int getGopCacheSize() {
+		return mGopCacheSize;
+	}
+
+	/**
+	 * Sets the rate of the replay of the cached group of pictures.
+	 * Changes will be taken into account the next time the stream is started.
+	 * @param bitrate The rate in bit per second, at most {@link RtpSocket#MAX_REPLAY_RATE}
+	 */
+	public void setReplayRate(int bitrate) {
+		if (bitrate<=0 || bitrate>RtpSocket.MAX_REPLAY_RATE) throw new IllegalArgumentException("The rate must be between 1 and "+RtpSocket.MAX_REPLAY_RATE+" !");
+		mReplayRate = bitrate;
+	}
+
+	/** Returns the rate set with {@link #setReplayRate(int)}. */
+	public int getReplayRate() {
+		return mReplayRate;
+	}
+
 	/** 
 	 * Returns a pair of destination ports, the first one is the 
 	 * one used for RTP and the second one is used for RTCP. 
@@ -189,6 +361,42 @@ public abstract class MediaStream implements Stream {
 		return !mStreaming ? 0 : mPacketizer.getRtpSocket().getBitrate(); 
 	}
 
+	/**
+	 * Returns the last RTCP report sent back by each receiver of the stream: 
+	 * fraction of packets lost, cumulative loss, jitter and round trip time.
+	 */
+	public List<ReceptionReport> getReceptionReports() {
+		if (!mStreaming) return Collections.emptyList();
+		return mPacketizer.getRtpSocket().getReceptionReports();
+	}
+
+	/** Returns the highest fraction of packets lost reported by the receivers, between 0 and 1. */
+	public float getFractionLost() {
+		float lost = 0;
+		for (ReceptionReport report : getReceptionReports()) {
+			if (!report.isBye() && report.getFractionLost()>lost) lost = report.getFractionLost();
+		}
+		return lost;
+	}
+
+	/** Returns the highest jitter reported by the receivers in milliseconds. */
+	public long getJitter() {
+		long jitter = 0, clock = mPacketizer.getRtpSocket().getClockFrequency();
+		for (ReceptionReport report : getReceptionReports()) {
+			if (!report.isBye() && report.getJitter(clock)>jitter) jitter = report.getJitter(clock);
+		}
+		return jitter;
+	}
+
+	/** Returns the highest round trip time reported by the receivers in milliseconds, -1 if unknown. */
+	public long getRoundTripTime() {
+		long rtt = -1;
+		for (ReceptionReport report : getReceptionReports()) {
+			if (!report.isBye() && report.getRoundTripTime()>rtt) rtt = report.getRoundTripTime();
+		}
+		return rtt;
+	}
+
 	/**
 	 * Indicates if the {@link MediaStream} is streaming.
 	 * @return A boolean indicating if the {@link MediaStream} is streaming
@@ -219,6 +427,13 @@ public abstract class MediaStream implements Stream {
 			throw new IllegalStateException("No destination ports set for the stream !");
 
 		mPacketizer.setTimeToLive(mTTL);
+		mPacketizer.getRtpSocket().setFecOverhead(mFecOverhead);
+		mPacketizer.setMtu(mMtu);
+		mPacketizer.getRtpSocket().setTransport(mTransport);
+		mPacketizer.getRtpSocket().setBurstSize(mBurstSize);
+		mPacketizer.getRtpSocket().setWaitStrategy(mWaitStrategy);
+		mPacketizer.getRtpSocket().setGopCacheSize(mGopCacheSize);
+		mPacketizer.getRtpSocket().setReplayRate(mReplayRate);
 		
 		if (mMode != MODE_MEDIARECORDER_API) {
 			encodeWithMediaCodec();
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.WeakHashMap;
+
+import net.majorkernelpanic.streaming.audio.AudioStream;
+import net.majorkernelpanic.streaming.video.VideoStream;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides whether a new session may be started, so that a burst of clients does not start
+ * more encoders than the phone can run without overheating.
+ *
+ * The budget covers the number of encoders running (one per track streaming), the
+ * aggregate bitrate of the sessions and the CPU load of the device. Sessions register
+ * themselves when they start and stop, whatever server started them. A session admitted
+ * holds its encoders and its bitrate until it stops, even before it starts, so that 
+ * clients admitted at the same time can't exceed the budget together.
+ * When the bitrate budget is exhausted, the running video streams can optionally be
+ * degraded to a lower bitrate tier to make room for the new session.
+ */
+public class ResourceGovernor {
+
+	public final static String TAG = "ResourceGovernor";
+
+	/** The session may be started. */
+	public final static int ADMITTED = 0;
+
+	/** The session would exceed the bitrate budget. */
+	public final static int REJECTED_BANDWIDTH = 1;
+
+	/** The session would exceed the number of encoders or the CPU budget. */
+	public final static int REJECTED_LOAD = 2;
+
+	/** Default number of encoders running at the same time. */
+	public final static int DEFAULT_MAX_ENCODERS = 4;
+
+	/** Default aggregate bitrate of the sessions, in bit per second. */
+	public final static long DEFAULT_MAX_BITRATE = 10000000;
+
+	/** Default CPU load above which no session is started, between 0 and 1. */
+	public final static float DEFAULT_MAX_CPU_LOAD = 0.9f;
+
+	/** Default delay advertised to the rejected clients, in seconds. */
+	public final static int DEFAULT_RETRY_AFTER = 10;
+
+	// Each tier halves the bitrate of the video stream
+	private final static int MAX_TIER = 2;
+
+	// The bitrate of a degraded video stream never goes below that
+	private final static int MIN_DEGRADED_BITRATE = 100000;
+
+	// The CPU load is sampled at most that often, in ms
+	private final static long CPU_SAMPLING_PERIOD = 1000;
+
+	private static volatile ResourceGovernor sInstance = null;
+
+	/** Returns the governor shared by all the sessions. */
+	public static ResourceGovernor getInstance() {
+		if (sInstance == null) {
+			synchronized (ResourceGovernor.class) {
+				if (sInstance == null) sInstance = new ResourceGovernor();
+			}
+		}
+		return sInstance;
+	}
+
+	private int mMaxEncoders = DEFAULT_MAX_ENCODERS;
+	private long mMaxBitrate = DEFAULT_MAX_BITRATE;
+	private float mMaxCpuLoad = DEFAULT_MAX_CPU_LOAD;
+	private int mRetryAfter = DEFAULT_RETRY_AFTER;
+	private boolean mDegrade = false;
+
+	// Sessions streaming, with the tier of their video stream
+	private final WeakHashMap<Session,Integer> mSessions = new WeakHashMap<Session,Integer>();
+
+	// Sessions admitted, their tracks count in the budget before they start
+	private final WeakHashMap<Session,Boolean> mReserved = new WeakHashMap<Session,Boolean>();
+
+	// Last sample of /proc/stat
+	private long mCpuTime = 0, mCpuTotal = 0, mCpuIdle = 0;
+	private float mCpuLoad = -1;
+
+	private ResourceGovernor() {}
+
+	/**
+	 * Sets the number of encoders that may run at the same time.
+	 * @param max The number of tracks streaming, 0 for no limit
+	 */
+	public synchronized void setMaxEncoders(int max) {
+		mMaxEncoders = max;
+	}
+
+	public synchronized int getMaxEncoders() {
+		return mMaxEncoders;
+	}
+
+	/**
+	 * Sets the aggregate bitrate of the sessions.
+	 * @param max The bitrate in bit per second, 0 for no limit
+	 */
+	public synchronized void setMaxBitrate(long max) {
+		mMaxBitrate = max;
+	}
+
+	public synchronized long getMaxBitrate() {
+		return mMaxBitrate;
+	}
+
+	/**
+	 * Sets the CPU load above which no session is started.
+	 * @param max Between 0 and 1, 1 for no limit
+	 */
+	public synchronized void setMaxCpuLoad(float max) {
+		mMaxCpuLoad = max;
+	}
+
+	/** Sets the delay the rejected clients are asked to wait before trying again, in seconds. */
+	public synchronized void setRetryAfter(int seconds) {
+		mRetryAfter = seconds;
+	}
+
+	public synchronized int getRetryAfter() {
+		return mRetryAfter;
+	}
+
+	/**
+	 * Allows the bitrate of the video streams running to be lowered to make room for a new session.
+	 * Only works with the MediaCodec API on Android 4.4 and up.
+	 */
+	public synchronized void setDegradeEnabled(boolean enabled) {
+		mDegrade = enabled;
+	}
+
+	/**
+	 * Decides whether a session that is not streaming yet may be started. An admitted session
+	 * holds its place in the budget until {@link Session#syncStop()} is called.
+	 * @return {@link #ADMITTED}, {@link #REJECTED_BANDWIDTH} or {@link #REJECTED_LOAD}
+	 */
+	public synchronized int admit(Session session) {
+		// The session may be admitted again, it does not count against itself
+		mReserved.remove(session);
+		int encoders = 0;
+		long bitrate = 0;
+		AudioStream audio = session.getAudioTrack();
+		VideoStream video = session.getVideoTrack();
+		if (audio != null && !audio.isStreaming()) {
+			encoders++;
+			bitrate += audio.getAudioQuality().bitRate;
+		}
+		if (video != null && !video.isStreaming()) {
+			encoders++;
+			bitrate += video.getVideoQuality().bitrate;
+		}
+		if (mMaxEncoders>0 && getEncoderCount()+encoders>mMaxEncoders) {
+			Log.d(TAG, "Session rejected: "+getEncoderCount()+" encoders running");
+			return REJECTED_LOAD;
+		}
+		float load = getCpuLoad();
+		if (load>mMaxCpuLoad) {
+			Log.d(TAG, "Session rejected: CPU load "+(int)(load*100)+"%");
+			return REJECTED_LOAD;
+		}
+		if (mMaxBitrate>0 && getBitrate()+bitrate>mMaxBitrate) {
+			if (!mDegrade || !degrade(getBitrate()+bitrate-mMaxBitrate)) {
+				Log.d(TAG, "Session rejected: "+getBitrate()/1000+" kbps streamed");
+				return REJECTED_BANDWIDTH;
+			}
+		}
+		mReserved.put(session, Boolean.TRUE);
+		return ADMITTED;
+	}
+
+	/** Returns the number of tracks streaming, and of the tracks of the admitted sessions. */
+	public synchronized int getEncoderCount() {
+		int count = 0;
+		for (Session session : mSessions.keySet()) {
+			if (mReserved.containsKey(session)) continue;
+			if (session.getAudioTrack() != null && session.getAudioTrack().isStreaming()) count++;
+			if (session.getVideoTrack() != null && session.getVideoTrack().isStreaming()) count++;
+		}
+		for (Session session : mReserved.keySet()) {
+			if (session.getAudioTrack() != null) count++;
+			if (session.getVideoTrack() != null) count++;
+		}
+		return count;
+	}
+
+	/** 
+	 * Returns the aggregate bitrate of the sessions streaming, in bit per second. 
+	 * The tracks of the admitted sessions that have not started yet count for their nominal bitrate.
+	 */
+	public synchronized long getBitrate() {
+		long bitrate = 0;
+		for (Session session : mSessions.keySet()) {
+			if (session.isStreaming()) bitrate += session.getBitrate();
+		}
+		for (Session session : mReserved.keySet()) {
+			AudioStream audio = session.getAudioTrack();
+			VideoStream video = session.getVideoTrack();
+			if (audio != null && !audio.isStreaming()) bitrate += audio.getAudioQuality().bitRate;
+			if (video != null && !video.isStreaming()) bitrate += video.getVideoQuality().bitrate;
+		}
+		return bitrate;
+	}
+
+	/**
+	 * Returns the CPU load of the device since the previous sample, between 0 and 1.
+	 * @return -1 if /proc/stat can't be read
+	 */
+	public synchronized float getCpuLoad() {
+		long now = SystemClock.elapsedRealtime();
+		if (now-mCpuTime<CPU_SAMPLING_PERIOD) return mCpuLoad;
+		mCpuTime = now;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader("/proc/stat"));
+			// cpu user nice system idle iowait irq softirq
+			String[] fields = reader.readLine().trim().split("\\s+");
+			long total = 0, idle = 0;
+			for (int i=1;i<fields.length && i<8;i++) {
+				long value = Long.parseLong(fields[i]);
+				total += value;
+				if (i == 4 || i == 5) idle += value;
+			}
+			if (mCpuTotal>0 && total>mCpuTotal) {
+				mCpuLoad = 1f-(float)(idle-mCpuIdle)/(total-mCpuTotal);
+			}
+			mCpuTotal = total;
+			mCpuIdle = idle;
+		} catch (Exception e) {
+			// Not readable by applications since Android 8
+			mCpuLoad = -1;
+		} finally {
+			try {
+				if (reader != null) reader.close();
+			} catch (IOException ignore) {}
+		}
+		return mCpuLoad;
+	}
+
+	/** Called by the session when one of its tracks starts. */
+	synchronized void onSessionStarted(Session session) {
+		if (!mSessions.containsKey(session)) mSessions.put(session, 0);
+	}
+
+	/** Called by the session when it stops, the degraded sessions get their bitrate back if the budget allows it. */
+	synchronized void onSessionStopped(Session session) {
+		mSessions.remove(session);
+		mReserved.remove(session);
+		for (Session other : mSessions.keySet()) {
+			int tier = mSessions.get(other);
+			VideoStream video = other.getVideoTrack();
+			if (tier == 0 || video == null || !video.isStreaming()) continue;
+			int bitrate = getTierBitrate(video, tier-1);
+			if (mMaxBitrate>0 && getBitrate()+bitrate-getTierBitrate(video, tier)>mMaxBitrate) continue;
+			if (video.setEncoderBitrate(bitrate)) mSessions.put(other, tier-1);
+		}
+	}
+
+	/** Lowers the bitrate of the video streams running, one tier at a time, until enough bitrate is freed. */
+	private boolean degrade(long needed) {
+		for (int tier=1;tier<=MAX_TIER && needed>0;tier++) {
+			for (Session session : mSessions.keySet()) {
+				VideoStream video = session.getVideoTrack();
+				if (mSessions.get(session) != tier-1 || video == null || !video.isStreaming()) continue;
+				int freed = getTierBitrate(video, tier-1)-getTierBitrate(video, tier);
+				if (freed<=0 || !video.setEncoderBitrate(getTierBitrate(video, tier))) continue;
+				mSessions.put(session, tier);
+				Log.d(TAG, "Video stream degraded to "+getTierBitrate(video, tier)/1000+" kbps");
+				needed -= freed;
+				if (needed<=0) break;
+			}
+		}
+		return needed<=0;
+	}
+
+	private static int getTierBitrate(VideoStream video, int tier) {
+		return Math.max(MIN_DEGRADED_BITRATE, video.getVideoQuality().bitrate>>tier);
+	}
+
+}
@@ -23,7 +23,11 @@ package net.majorkernelpanic.streaming;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.majorkernelpanic.streaming.audio.AudioQuality;
 import net.majorkernelpanic.streaming.audio.AudioStream;
@@ -32,6 +36,9 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+import net.majorkernelpanic.streaming.rtp.UlpfecEncoder;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -97,9 +104,14 @@ public class Session {
 	 */
 	public final static int ERROR_OTHER = 0x06;
 
+	/** Passed to {@link #setMtu(int)}, the MTU is probed when a track is started. */
+	public final static int MTU_PROBE = 0;
+
 	private String mOrigin;
 	private String mDestination;
 	private int mTimeToLive = 64;
+	private double mFecOverhead = 0;
+	private int mMtu = RtpSocket.MTU;
 	private long mTimestamp;
 
 	private AudioStream mAudioStream = null;
@@ -257,6 +269,33 @@ public class Session {
 		mTimeToLive = ttl;
 	}
 
+	/** Returns the time to live of the packets sent to the destination. */
+	public int getTimeToLive() {
+		return mTimeToLive;
+	}
+
+	/** 
+	 * Enables forward error correction for all tracks of the session.
+	 * Changes will be taken into account the next time you start the session.
+	 * @param overhead Ratio between the FEC packets and the media packets, 0 to disable FEC
+	 */
+	public void setFecOverhead(double overhead) {
+		mFecOverhead = overhead;
+	}
+
+	/** 
+	 * Sets the MTU of the path to the destination, IP and UDP headers included.
+	 * Changes will be taken into account the next time you start the session.
+	 * @param mtu The MTU, or {@link #MTU_PROBE} to look for the MTU of the path each time a track is started
+	 */
+	public void setMtu(int mtu) {
+		mMtu = mtu;
+	}
+
+	public int getMtu() {
+		return mMtu;
+	}
+
 	/** 
 	 * Sets the configuration of the stream. You can call this method at any time 
 	 * and changes will take effect next time you call {@link #configure()}.
@@ -334,16 +373,25 @@ public class Session {
 		sessionDescription.append("a=recvonly\r\n");
 		// Prevents two different sessions from using the same peripheral at the same time
 		if (mAudioStream != null) {
-			sessionDescription.append(mAudioStream.getSessionDescription());
+			sessionDescription.append(addFecDescription(mAudioStream.getSessionDescription()));
 			sessionDescription.append("a=control:trackID="+0+"\r\n");
 		}
 		if (mVideoStream != null) {
-			sessionDescription.append(mVideoStream.getSessionDescription());
+			sessionDescription.append(addFecDescription(mVideoStream.getSessionDescription()));
 			sessionDescription.append("a=control:trackID="+1+"\r\n");
 		}			
 		return sessionDescription.toString();
 	}
 
+	/** Adds the payload type of the FEC packets to the description of a track, with the clock rate of the track. */
+	private String addFecDescription(String description) {
+		if (mFecOverhead<=0) return description;
+		Matcher m = Pattern.compile("a=rtpmap:96 [^/]+/(\\d+)").matcher(description);
+		String clock = m.find() ? m.group(1) : "90000";
+		return description.replaceFirst("RTP/AVP 96\r\n", "RTP/AVP 96 "+UlpfecEncoder.PAYLOAD_TYPE+"\r\n") +
+				"a=rtpmap:"+UlpfecEncoder.PAYLOAD_TYPE+" ulpfec/"+clock+"\r\n";
+	}
+
 	/** Returns the destination set with {@link #setDestination(String)}. */
 	public String getDestination() {
 		return mDestination;
@@ -357,6 +405,24 @@ public class Session {
 		return sum;
 	}
 
+	/** 
+	 * Returns the last RTCP report sent back by each receiver of a track.
+	 * @param id 0 for the audio track, 1 for the video track
+	 */
+	public List<ReceptionReport> getReceptionReports(int id) {
+		MediaStream stream = (MediaStream) getTrack(id);
+		if (stream == null) return Collections.emptyList();
+		return stream.getReceptionReports();
+	}
+
+	/** Returns the highest fraction of packets lost reported by the receivers of the session, between 0 and 1. */
+	public float getFractionLost() {
+		float lost = 0;
+		if (mAudioStream != null) lost = Math.max(lost, mAudioStream.getFractionLost());
+		if (mVideoStream != null) lost = Math.max(lost, mVideoStream.getFractionLost());
+		return lost;
+	}
+
 	/** Indicates if a track is currently running. */
 	public boolean isStreaming() {
 		if ( (mAudioStream!=null && mAudioStream.isStreaming()) || (mVideoStream!=null && mVideoStream.isStreaming()) )
@@ -454,8 +520,11 @@ public class Session {
 			try {
 				InetAddress destination =  InetAddress.getByName(mDestination);
 				stream.setTimeToLive(mTimeToLive);
+				((MediaStream) stream).setFecOverhead(mFecOverhead);
+				((MediaStream) stream).setMtu(mMtu != MTU_PROBE ? mMtu : RtpSocket.probeMtu(destination));
 				stream.setDestinationAddress(destination);
 				stream.start();
+				ResourceGovernor.getInstance().onSessionStarted(this);
 				if (getTrack(1-id) == null || getTrack(1-id).isStreaming()) {
 					postSessionStarted();
 				}
@@ -538,6 +607,7 @@ public class Session {
 	public void syncStop() {
 		syncStop(0);
 		syncStop(1);
+		ResourceGovernor.getInstance().onSessionStopped(this);
 		postSessionStopped();
 	}	
 
@@ -28,6 +28,9 @@ import net.majorkernelpanic.streaming.audio.AMRNBStream;
 import net.majorkernelpanic.streaming.audio.AudioQuality;
 import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtp.GopCache;
+import net.majorkernelpanic.streaming.rtp.PacketRing;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import net.majorkernelpanic.streaming.video.H263Stream;
 import net.majorkernelpanic.streaming.video.H264Stream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
@@ -35,6 +38,7 @@ import net.majorkernelpanic.streaming.video.VideoStream;
 import android.content.Context;
 import android.hardware.Camera.CameraInfo;
 import android.preference.PreferenceManager;
+import android.util.Log;
 
 /**
  * Call {@link #getInstance()} to get access to the SessionBuilder.
@@ -64,6 +68,13 @@ public class SessionBuilder {
 	//ͷķ
 	private int mCamera = CameraInfo.CAMERA_FACING_BACK;
 	private int mTimeToLive = 64;
+	private double mFecOverhead = 0;
+	private int mMtu = RtpSocket.MTU;
+	private byte mTransport = RtpSocket.TRANSPORT_SOCKET;
+	private int mBurstSize = RtpSocket.DEFAULT_BURST_SIZE;
+	private PacketRing.WaitStrategy mWaitStrategy = PacketRing.WaitStrategy.DEFAULT;
+	private int mGopCacheSize = GopCache.DEFAULT_MAX_SIZE, mReplayRate = RtpSocket.DEFAULT_REPLAY_RATE;
+	private int mMinVideoBitrate = 0, mMaxVideoBitrate = 0;
 	private int mOrientation = 0;
 	private boolean mFlash = false;
 	private SurfaceView mSurfaceView = null;
@@ -105,6 +116,8 @@ public class SessionBuilder {
 		session.setOrigin(mOrigin);
 		session.setDestination(mDestination);
 		session.setTimeToLive(mTimeToLive);
+		session.setFecOverhead(mFecOverhead);
+		session.setMtu(mMtu);
 		session.setCallback(mCallback);
 
 		switch (mAudioEncoder) {
@@ -137,6 +150,9 @@ public class SessionBuilder {
 			video.setVideoQuality(mVideoQuality);
 			video.setSurfaceView(mSurfaceView);
 			video.setPreviewOrientation(mOrientation);
+			video.setBitrateRange(mMinVideoBitrate, mMaxVideoBitrate);
+			video.setGopCacheSize(mGopCacheSize);
+			video.setReplayRate(mReplayRate);
 			video.setDestinationPorts(5006);
 		}
 
@@ -146,6 +162,25 @@ public class SessionBuilder {
 			audio.setDestinationPorts(5004);
 		}
 
+		// The TTL can't be set on a DatagramChannel, a multicast stream would not leave the local network
+		byte transport = mTransport;
+		if (transport == RtpSocket.TRANSPORT_CHANNEL && isMulticast(mDestination)) {
+			Log.w(TAG, "The TTL is not supported by the DatagramChannel, the multicast tracks are sent with a socket");
+			transport = RtpSocket.TRANSPORT_SOCKET;
+		}
+
+		for (int id=0;id<2;id++) {
+			if (!session.trackExists(id)) continue;
+			MediaStream stream = (MediaStream) session.getTrack(id);
+			stream.setBurstSize(mBurstSize);
+			stream.setWaitStrategy(mWaitStrategy);
+			try {
+				stream.setTransport(transport);
+			} catch (IOException e) {
+				Log.e(TAG, "The DatagramChannel could not be opened, the track is sent with a socket");
+			}
+		}
+
 		return session;
 
 	}
@@ -210,6 +245,81 @@ public class SessionBuilder {
 		return this;
 	}
 
+	/** 
+	 * Sets the ratio between the FEC packets and the media packets.
+	 * @param overhead 0.1 means one FEC packet every ten packets, 0 disables FEC
+	 */
+	public SessionBuilder setFecOverhead(double overhead) {
+		mFecOverhead = overhead;
+		return this;
+	}
+
+	/** 
+	 * Sets the MTU of the path to the receivers, IP and UDP headers included.
+	 * @param mtu The MTU, or {@link Session#MTU_PROBE} to probe it when the session starts
+	 */
+	public SessionBuilder setMtu(int mtu) {
+		mMtu = mtu;
+		return this;
+	}
+
+	/** 
+	 * Selects the API used to send the packets over the network. The multicast sessions
+	 * are always sent with {@link RtpSocket#TRANSPORT_SOCKET}, the only one that supports the TTL.
+	 * @param transport {@link RtpSocket#TRANSPORT_SOCKET} or {@link RtpSocket#TRANSPORT_CHANNEL}
+	 */
+	public SessionBuilder setTransport(byte transport) {
+		mTransport = transport;
+		return this;
+	}
+
+	/** 
+	 * Sets the maximum number of packets sent in a row by the sender thread of each track.
+	 * @param burstSize The number of packets, 0 to only bound the bursts in time
+	 * @see RtpSocket#setBurstSize(int)
+	 */
+	public SessionBuilder setBurstSize(int burstSize) {
+		mBurstSize = burstSize;
+		return this;
+	}
+
+	/** 
+	 * Sets how the packetizer of each track waits for its sender thread when the FIFO is full.
+	 * @see RtpSocket#setWaitStrategy(PacketRing.WaitStrategy)
+	 */
+	public SessionBuilder setWaitStrategy(PacketRing.WaitStrategy strategy) {
+		mWaitStrategy = strategy;
+		return this;
+	}
+
+	/** 
+	 * Sets the cap of the cache of the group of pictures replayed to the viewers that join the stream.
+	 * @param size The cap in bytes, 0 to disable the cache
+	 */
+	public SessionBuilder setGopCacheSize(int size) {
+		mGopCacheSize = size;
+		return this;
+	}
+
+	/** 
+	 * Sets the rate of the replay of the cached group of pictures.
+	 * @param bitrate The rate in bit per second
+	 */
+	public SessionBuilder setReplayRate(int bitrate) {
+		mReplayRate = bitrate;
+		return this;
+	}
+
+	/** 
+	 * Sets the bounds of the congestion control of the video stream, in bit per second.
+	 * @see VideoStream#setBitrateRange(int, int)
+	 */
+	public SessionBuilder setVideoBitrateRange(int min, int max) {
+		mMinVideoBitrate = min;
+		mMaxVideoBitrate = max;
+		return this;
+	}
+
 	/** 
 	 * Sets the SurfaceView required to preview the video stream. 
 	 **/
@@ -288,6 +398,59 @@ public class SessionBuilder {
 		return mTimeToLive;
 	}
 
+	/** Returns the FEC overhead set with {@link #setFecOverhead(double)}. */
+	public double getFecOverhead() {
+		return mFecOverhead;
+	}
+
+	/** Returns the MTU set with {@link #setMtu(int)}. */
+	public int getMtu() {
+		return mMtu;
+	}
+
+	/** Returns the API set with {@link #setTransport(byte)}. */
+	public byte getTransport() {
+		return mTransport;
+	}
+
+	/** Returns the size set with {@link #setBurstSize(int)}. */
+	public int getBurstSize() {
+		return mBurstSize;
+	}
+
+	/** Returns the strategy set with {@link #setWaitStrategy(PacketRing.WaitStrategy)}. */
+	public PacketRing.WaitStrategy getWaitStrategy() {
+		return mWaitStrategy;
+	}
+
+	/** Returns the cap set with {@link #setGopCacheSize(int)}. */
+	public int getGopCacheSize() {
+		return mGopCacheSize;
+	}
+
+	/** Returns the rate set with {@link #setReplayRate(int)}. */
+	public int getReplayRate() {
+		return mReplayRate;
+	}
+
+	/** Returns the lowest video bitrate set with {@link #setVideoBitrateRange(int, int)}. */
+	public int getMinVideoBitrate() {
+		return mMinVideoBitrate;
+	}
+
+	/** Returns the highest video bitrate set with {@link #setVideoBitrateRange(int, int)}. */
+	public int getMaxVideoBitrate() {
+		return mMaxVideoBitrate;
+	}
+
+	private static boolean isMulticast(String destination) {
+		try {
+			return destination != null && InetAddress.getByName(destination).isMulticastAddress();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
 	/** Returns a new {@link SessionBuilder} with the same configuration. */
 	public SessionBuilder clone() {
 		return new SessionBuilder()
@@ -300,6 +463,14 @@ public class SessionBuilder {
 		.setFlashEnabled(mFlash)
 		.setCamera(mCamera)
 		.setTimeToLive(mTimeToLive)
+		.setFecOverhead(mFecOverhead)
+		.setMtu(mMtu)
+		.setTransport(mTransport)
+		.setBurstSize(mBurstSize)
+		.setWaitStrategy(mWaitStrategy)
+		.setGopCacheSize(mGopCacheSize)
+		.setReplayRate(mReplayRate)
+		.setVideoBitrateRange(mMinVideoBitrate, mMaxVideoBitrate)
 		.setAudioEncoder(mAudioEncoder)
 		.setAudioQuality(mAudioQuality)
 		.setContext(mContext)
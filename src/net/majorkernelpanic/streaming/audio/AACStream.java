@@ -151,6 +151,7 @@ public class AACStream extends AudioStream {
 			} else { 
 				mPacketizer = new AACLATMPacketizer();
 			}		
+			mPacketizer.getRtpSocket().setTransport(getTransport());
 		}
 		
 
@@ -186,6 +187,7 @@ public class AACStream extends AudioStream {
 	protected void encodeWithMediaRecorder() throws IOException {
 		testADTS();
 		((AACADTSPacketizer)mPacketizer).setSamplingRate(mQuality.samplingRate);
+		((AACADTSPacketizer)mPacketizer).setMaxAggregationDelay(mQuality.packetDuration);
 		super.encodeWithMediaRecorder();
 	}
 
@@ -196,6 +198,7 @@ public class AACStream extends AudioStream {
 		final int bufferSize = AudioRecord.getMinBufferSize(mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT)*2;
 
 		((AACLATMPacketizer)mPacketizer).setSamplingRate(mQuality.samplingRate);
+		((AACLATMPacketizer)mPacketizer).setMaxAggregationDelay(mQuality.packetDuration);
 
 		mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mQuality.samplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
 		mMediaCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
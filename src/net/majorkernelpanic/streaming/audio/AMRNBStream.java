@@ -70,6 +70,7 @@ public class AMRNBStream extends AudioStream {
 		super.configure();
 		mMode = MODE_MEDIARECORDER_API;
 		mQuality = mRequestedQuality.clone();
+		((AMRNBPacketizer)mPacketizer).setFramesPerPacket(mQuality.packetDuration/20);
 	}
 	
 	/**
@@ -78,7 +79,9 @@ public class AMRNBStream extends AudioStream {
 	public String getSessionDescription() {
 		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 				"a=rtpmap:96 AMR/8000\r\n" +
-				"a=fmtp:96 octet-align=1;\r\n";
+				"a=fmtp:96 octet-align=1;\r\n" +
+				"a=ptime:"+((AMRNBPacketizer)mPacketizer).getFramesPerPacket()*20+"\r\n" +
+				"a=maxptime:"+((AMRNBPacketizer)mPacketizer).getFramesPerPacket()*20+"\r\n";
 	}
 
 	@Override
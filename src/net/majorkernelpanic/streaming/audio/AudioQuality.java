@@ -44,14 +44,23 @@ public class AudioQuality {
 	public int samplingRate = 0;
 	public int bitRate = 0;
 
+	/** 
+	 * Longest duration of audio carried by a RTP packet in milliseconds, frames are 
+	 * bundled in a packet until it is reached. 0 sends each frame in its own packet.
+	 */
+	public int packetDuration = 0;
+
 	public boolean equals(AudioQuality quality) {
 		if (quality==null) return false;
 		return (quality.samplingRate == this.samplingRate 				&
-				quality.bitRate == this.bitRate);
+				quality.bitRate == this.bitRate 						&
+				quality.packetDuration == this.packetDuration);
 	}
 
 	public AudioQuality clone() {
-		return new AudioQuality(samplingRate, bitRate);
+		AudioQuality quality = new AudioQuality(samplingRate, bitRate);
+		quality.packetDuration = packetDuration;
+		return quality;
 	}
 
 	public static AudioQuality parseQuality(String str) {
@@ -61,6 +70,7 @@ public class AudioQuality {
 			try {
 				quality.bitRate = Integer.parseInt(config[0])*1000; // conversion to bit/s
 				quality.samplingRate = Integer.parseInt(config[1]);
+				quality.packetDuration = Integer.parseInt(config[2]);
 			}
 			catch (IndexOutOfBoundsException ignore) {}
 		}
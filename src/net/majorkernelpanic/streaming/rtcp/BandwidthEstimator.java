@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtcp;
+
+/**
+ * Estimates the bitrate the network can carry from the feedback of the receivers.
+ * Used by the {@link CongestionController}, it does not depend on the Android API
+ * so that it can be fed with recorded or synthetic feedback.
+ */
+public interface BandwidthEstimator {
+
+	/**
+	 * Starts a new estimation.
+	 * @param bitrate The initial bitrate in bit per second
+	 * @param min The lowest estimate allowed
+	 * @param max The highest estimate allowed
+	 */
+	void reset(int bitrate, int min, int max);
+
+	/**
+	 * Updates the estimate with a new report of a receiver. The reports of different 
+	 * receivers are interleaved, they must not be mixed up.
+	 * @param ssrc The SSRC of the receiver
+	 * @param now The current time in milliseconds
+	 * @param fractionLost The fraction of packets lost since the previous report, between 0 and 1
+	 * @param rtt The round trip time in milliseconds, -1 if unknown
+	 * @param queueDelay How long packets wait in the sender before being sent, in milliseconds
+	 * @param sendBitrate The bitrate actually sent, in bit per second
+	 * @return The new estimate in bit per second
+	 */
+	int update(int ssrc, long now, float fractionLost, long rtt, long queueDelay, long sendBitrate);
+
+	/**
+	 * Forgets a receiver that left the session.
+	 * @param ssrc The SSRC of the receiver
+	 * @return The new estimate in bit per second
+	 */
+	int remove(int ssrc);
+
+	/** Returns the current estimate in bit per second. */
+	int getEstimate();
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Feeds a {@link BandwidthEstimator} with the reports of the receivers and tells
+ * the encoder when its target bitrate should change. With several receivers, the 
+ * estimator tells them apart by their SSRC and the most constrained one drives the bitrate.
+ */
+public class CongestionController {
+
+	public final static String TAG = "CongestionController";
+
+	public interface Callback {
+
+		/** Called from the thread reading the RTCP packets when the target bitrate changes. */
+		void onTargetBitrate(int bitrate);
+
+	}
+
+	private final BandwidthEstimator mEstimator;
+	private final Callback mCallback;
+	private int mTarget;
+
+	/**
+	 * @param estimator The estimator
+	 * @param bitrate The bitrate the encoder starts with
+	 * @param min The lowest target bitrate
+	 * @param max The highest target bitrate
+	 * @param callback Called when the target bitrate changes
+	 */
+	public CongestionController(BandwidthEstimator estimator, int bitrate, int min, int max, Callback callback) {
+		mEstimator = estimator;
+		mCallback = callback;
+		mEstimator.reset(bitrate, min, max);
+		mTarget = mEstimator.getEstimate();
+	}
+
+	public synchronized int getTargetBitrate() {
+		return mTarget;
+	}
+
+	/**
+	 * Updates the estimate with the report of a receiver.
+	 * @param report The report
+	 * @param sendBitrate The bitrate actually sent in bit per second
+	 * @param queueDelay How long packets wait in the sender before being sent, in milliseconds
+	 */
+	public void onReceptionReport(ReceptionReport report, long sendBitrate, long queueDelay) {
+		int target;
+		synchronized (this) {
+			if (report.isBye()) {
+				target = mEstimator.remove(report.getSSRC());
+			} else {
+				target = mEstimator.update(report.getSSRC(), SystemClock.elapsedRealtime(), report.getFractionLost(), 
+						report.getRoundTripTime(), queueDelay, sendBitrate);
+			}
+			// Small changes are not worth disturbing the encoder
+			if (Math.abs(target-mTarget)<mTarget/20) return;
+			mTarget = target;
+		}
+		Log.d(TAG, "Target bitrate: "+target/1000+" kbps ("+report+")");
+		mCallback.onTargetBitrate(target);
+	}
+
+}
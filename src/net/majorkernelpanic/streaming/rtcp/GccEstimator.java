@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A {@link BandwidthEstimator} in the spirit of Google Congestion Control: the 
+ * estimate is the lowest of a delay based and of a loss based controller.
+ * 
+ * The receivers only send a report every few seconds and no per packet arrival time,
+ * so the delay signal is the round trip time plus the time packets spend in the sender.
+ * An overuse is detected when it grows faster than an adaptive threshold.
+ * 
+ * Each receiver gets its own delay history and its own estimate, the estimate of the 
+ * stream is the lowest of them so that the most constrained receiver drives the bitrate.
+ */
+public class GccEstimator implements BandwidthEstimator {
+
+	/** Normal use of the network, the estimate can increase. */
+	public final static int STATE_NORMAL = 0;
+
+	/** The delay grows, the estimate must decrease. */
+	public final static int STATE_OVERUSE = 1;
+
+	/** The delay shrinks, queues are draining and the estimate is held. */
+	public final static int STATE_UNDERUSE = 2;
+
+	/** A receiver that did not report for that long is forgotten, in milliseconds. */
+	public final static long RECEIVER_TIMEOUT = 30000;
+
+	// Smoothing of the delay gradient
+	private final static double ALPHA = 0.6;
+
+	// Speed of adaptation of the threshold when the gradient is above/below it
+	private final static double K_UP = 0.01, K_DOWN = 0.00018;
+
+	private final HashMap<Integer,Receiver> mReceivers = new HashMap<Integer,Receiver>();
+	private int mEstimate, mMin, mMax;
+
+	public GccEstimator() {}
+
+	@Override
+	public void reset(int bitrate, int min, int max) {
+		mMin = min;
+		mMax = max;
+		mEstimate = clamp(bitrate);
+		mReceivers.clear();
+	}
+
+	@Override
+	public int getEstimate() {
+		return mEstimate;
+	}
+
+	/** 
+	 * Returns the state of the overuse detector of a receiver. 
+	 * @return {@link #STATE_NORMAL}, {@link #STATE_OVERUSE} or {@link #STATE_UNDERUSE}
+	 */
+	public int getState(int ssrc) {
+		Receiver receiver = mReceivers.get(ssrc);
+		return receiver != null ? receiver.mState : STATE_NORMAL;
+	}
+
+	@Override
+	public int update(int ssrc, long now, float fractionLost, long rtt, long queueDelay, long sendBitrate) {
+		Receiver receiver = mReceivers.get(ssrc);
+		if (receiver == null) {
+			// A new receiver starts from the current estimate of the stream
+			receiver = new Receiver(mEstimate);
+			mReceivers.put(ssrc, receiver);
+		}
+		receiver.update(now, fractionLost, rtt, queueDelay, sendBitrate);
+		for (Iterator<Receiver> it = mReceivers.values().iterator(); it.hasNext();) {
+			if (now-it.next().mLast>RECEIVER_TIMEOUT) it.remove();
+		}
+		return compute();
+	}
+
+	@Override
+	public int remove(int ssrc) {
+		if (mReceivers.remove(ssrc) != null && !mReceivers.isEmpty()) compute();
+		return mEstimate;
+	}
+
+	/** The estimate of the stream is the lowest estimate of the receivers. */
+	private int compute() {
+		int estimate = Integer.MAX_VALUE;
+		for (Receiver receiver : mReceivers.values()) {
+			estimate = Math.min(estimate, receiver.mEstimate);
+		}
+		if (estimate != Integer.MAX_VALUE) mEstimate = estimate;
+		return mEstimate;
+	}
+
+	private int clamp(int bitrate) {
+		if (mMax>0 && bitrate>mMax) return mMax;
+		if (bitrate<mMin) return mMin;
+		return bitrate;
+	}
+
+	/** The state of the delay based and of the loss based controllers for one receiver. */
+	private class Receiver {
+
+		private int mEstimate;
+		private int mState = STATE_NORMAL;
+		private double mGradient = 0, mThreshold = 12.5;
+		private long mDelay = -1, mLast = 0;
+
+		Receiver(int estimate) {
+			mEstimate = estimate;
+		}
+
+		void update(long now, float fractionLost, long rtt, long queueDelay, long sendBitrate) {
+			long elapsed = mLast != 0 ? now-mLast : 0;
+			mLast = now;
+			detect(rtt>=0 ? rtt+queueDelay : queueDelay, elapsed);
+
+			// Delay based controller
+			double delayed = mEstimate;
+			if (mState == STATE_OVERUSE) {
+				delayed = 0.85*(sendBitrate>0 ? Math.min(sendBitrate, mEstimate) : mEstimate);
+			} else if (mState == STATE_NORMAL && elapsed>0) {
+				delayed = mEstimate*Math.pow(1.08, Math.min(elapsed, 1000)/1000d);
+			}
+
+			// Loss based controller
+			double lossed = mEstimate;
+			if (fractionLost>0.1f) {
+				lossed = mEstimate*(1-0.5*fractionLost);
+			} else if (fractionLost<0.02f) {
+				lossed = mEstimate*1.05;
+			}
+
+			double estimate = Math.min(delayed, lossed);
+			// The estimate should not run away from what is actually sent
+			if (sendBitrate>0) estimate = Math.min(estimate, Math.max(mEstimate, 1.5*sendBitrate));
+			mEstimate = clamp((int) estimate);
+		}
+
+		/** Overuse detector, compares the smoothed gradient of the delay with the adaptive threshold. */
+		private void detect(long delay, long elapsed) {
+			if (mDelay<0 || elapsed<=0) {
+				mDelay = delay;
+				return;
+			}
+			double gradient = (delay-mDelay)*1000d/elapsed; // ms of delay per second
+			mDelay = delay;
+			mGradient = ALPHA*mGradient+(1-ALPHA)*gradient;
+
+			double m = Math.abs(mGradient);
+			// The threshold follows the gradient, slowly when it is far above so that a real overuse is not absorbed
+			if (m-mThreshold<15) mThreshold += Math.min(elapsed, 100)*(m<mThreshold ? K_DOWN : K_UP)*(m-mThreshold);
+			mThreshold = Math.max(6, Math.min(600, mThreshold));
+
+			if (mGradient>mThreshold) mState = STATE_OVERUSE;
+			else if (mGradient<-mThreshold) mState = STATE_UNDERUSE;
+			else mState = STATE_NORMAL;
+		}
+
+	}
+
+}
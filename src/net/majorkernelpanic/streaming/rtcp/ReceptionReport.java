@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.net.InetAddress;
+
+/**
+ * What a receiver of the stream says it receives, built from the last report block
+ * it sent in a RTCP Receiver Report (or Sender Report), its SDES and its BYE.
+ * Instances are immutable, a new one is created each time the receiver reports.
+ */
+public class ReceptionReport {
+
+	private final int mSsrc;
+	private final String mCname;
+	private final int mFractionLost;
+	private final int mCumulativeLost;
+	private final long mHighestSequence;
+	private final long mJitter;
+	private final long mRoundTripTime;
+	private final long mTime;
+	private final boolean mBye;
+	private final InetAddress mAddress;
+
+	ReceptionReport(int ssrc, String cname, int fractionLost, int cumulativeLost, long highestSequence,
+			long jitter, long rtt, long time, boolean bye, InetAddress address) {
+		mSsrc = ssrc;
+		mCname = cname;
+		mFractionLost = fractionLost;
+		mCumulativeLost = cumulativeLost;
+		mHighestSequence = highestSequence;
+		mJitter = jitter;
+		mRoundTripTime = rtt;
+		mTime = time;
+		mBye = bye;
+		mAddress = address;
+	}
+
+	ReceptionReport withCname(String cname) {
+		return new ReceptionReport(mSsrc, cname, mFractionLost, mCumulativeLost, mHighestSequence, mJitter, mRoundTripTime, mTime, mBye, mAddress);
+	}
+
+	ReceptionReport withBye() {
+		return new ReceptionReport(mSsrc, mCname, mFractionLost, mCumulativeLost, mHighestSequence, mJitter, mRoundTripTime, mTime, true, mAddress);
+	}
+
+	/** Returns the SSRC of the receiver. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns the CNAME sent by the receiver in a SDES packet, null if it did not send one. */
+	public String getCname() {
+		return mCname;
+	}
+
+	/** Returns the fraction of packets lost since the previous report, between 0 and 1. */
+	public float getFractionLost() {
+		return mFractionLost/256f;
+	}
+
+	/** Returns the number of packets lost since the beginning of the reception. */
+	public int getCumulativeLost() {
+		return mCumulativeLost;
+	}
+
+	/** Returns the extended highest sequence number received. */
+	public long getHighestSequence() {
+		return mHighestSequence;
+	}
+
+	/** Returns the interarrival jitter, in timestamp units. */
+	public long getJitter() {
+		return mJitter;
+	}
+
+	/**
+	 * Returns the interarrival jitter in milliseconds.
+	 * @param clock The clock frequency of the stream in Hz
+	 */
+	public long getJitter(long clock) {
+		return clock>0 ? mJitter*1000/clock : 0;
+	}
+
+	/** Returns the round trip time in milliseconds, or -1 if the receiver has not received a Sender Report yet. */
+	public long getRoundTripTime() {
+		return mRoundTripTime;
+	}
+
+	/** Returns when the report was received, {@link android.os.SystemClock#elapsedRealtime()}. */
+	public long getTime() {
+		return mTime;
+	}
+
+	/** Returns the address the receiver sent its last report from. */
+	public InetAddress getAddress() {
+		return mAddress;
+	}
+
+	/** Returns true if the receiver left the session with a BYE. */
+	public boolean isBye() {
+		return mBye;
+	}
+
+	@Override
+	public String toString() {
+		return "SSRC: "+Integer.toHexString(mSsrc)+" lost: "+mFractionLost*100/256+"% ("+mCumulativeLost+") jitter: "+mJitter+" rtt: "+mRoundTripTime+"ms";
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Reads the RTCP packets sent back by a receiver of the stream on the socket
+ * of a {@link SenderReport}. Receiver Reports, SDES and BYE packets are turned into 
+ * {@link ReceptionReport}, and the feedback messages of RFC 4585 are passed to a listener.
+ */
+public class RtcpReceiver implements Runnable {
+
+	public final static String TAG = "RtcpReceiver";
+
+	public static final int PT_SR = 200;
+	public static final int PT_RR = 201;
+	public static final int PT_SDES = 202;
+	public static final int PT_BYE = 203;
+
+	/** Type of the CNAME item of a SDES packet. */
+	public static final int SDES_CNAME = 1;
+
+	/** Transport layer feedback message (RFC 4585). */
+	public static final int PT_RTPFB = 205;
+
+	/** Generic NACK, FMT of a transport layer feedback message. */
+	public static final int FMT_NACK = 1;
+
+	/** Payload-specific feedback message (RFC 4585). */
+	public static final int PT_PSFB = 206;
+
+	/** Picture Loss Indication, FMT of a payload-specific feedback message. */
+	public static final int FMT_PLI = 1;
+
+	/** Full Intra Request (RFC 5104), FMT of a payload-specific feedback message. */
+	public static final int FMT_FIR = 4;
+
+	/** Callbacks are called from the thread of the receiver. */
+	public interface Listener {
+
+		/**
+		 * Called when the receiver reports lost packets with a Generic NACK.
+		 * @param ssrc The SSRC of the media source
+		 * @param sequences The sequence numbers of the lost packets
+		 */
+		void onNack(int ssrc, int[] sequences);
+
+		/** Called each time the receiver sends a report block, and when it leaves with a BYE. */
+		void onReceptionReport(ReceptionReport report);
+
+		/**
+		 * Called when the receiver asks for a key frame with a PLI or a FIR.
+		 * @param ssrc The SSRC of the media source
+		 */
+		void onKeyFrameRequest(int ssrc);
+
+	}
+
+	private final DatagramSocket mSocket;
+	private volatile Listener mListener;
+	private volatile Thread mThread = null;
+
+	// Last report of each receiver, indexed by its SSRC
+	private final ConcurrentHashMap<Integer,ReceptionReport> mReports = new ConcurrentHashMap<Integer,ReceptionReport>();
+
+	public RtcpReceiver(DatagramSocket socket, Listener listener) {
+		mSocket = socket;
+		mListener = listener;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/** Returns the last report of each receiver. */
+	public Collection<ReceptionReport> getReports() {
+		return mReports.values();
+	}
+
+	public void clearReports() {
+		mReports.clear();
+	}
+
+	public synchronized void start() {
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.start();
+		}
+	}
+
+	/** 
+	 * The thread stops within 500 ms, or right away if the socket is closed. If the receiver is 
+	 * started again in the meantime, both threads read the socket until then, each with its own buffer.
+	 */
+	public synchronized void stop() {
+		if (mThread != null) {
+			mThread.interrupt();
+			mThread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		final Thread thread = Thread.currentThread();
+		final byte[] buffer = new byte[SenderReport.MTU];
+		final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		try {
+			mSocket.setSoTimeout(500);
+			while (mThread == thread) {
+				try {
+					packet.setLength(buffer.length);
+					mSocket.receive(packet);
+					parse(buffer, packet.getLength(), packet.getAddress());
+				} catch (SocketTimeoutException ignore) {}
+			}
+		} catch (IOException e) {
+			// The socket was closed
+		}
+	}
+
+	/** 
+	 * Parses a compound RTCP packet. 
+	 * @param address The address of the receiver that sent it
+	 */
+	void parse(byte[] buffer, int length, InetAddress address) {
+		int offset = 0;
+		while (offset+4<=length) {
+			// Version must be 2
+			if ((buffer[offset]&0xC0) != 0x80) {
+				Log.e(TAG, "Invalid RTCP packet");
+				return;
+			}
+			int count = buffer[offset]&0x1F;
+			int type = buffer[offset+1]&0xFF;
+			int size = (getInt(buffer, offset+2, 2)+1)*4;
+			if (offset+size>length) return;
+			if (type == PT_RTPFB && count == FMT_NACK) {
+				parseNack(buffer, offset, size);
+			} else if (type == PT_PSFB && count == FMT_PLI && size>=12) {
+				final Listener listener = mListener;
+				if (listener != null) listener.onKeyFrameRequest(getInt(buffer, offset+8, 4));
+			} else if (type == PT_PSFB && count == FMT_FIR && size>=20) {
+				// The SSRC of the media source is in the FCI entries, the one of the header is not used
+				final Listener listener = mListener;
+				if (listener != null) listener.onKeyFrameRequest(getInt(buffer, offset+12, 4));
+			} else if (type == PT_RR && size>=8) {
+				parseReportBlocks(buffer, getInt(buffer, offset+4, 4), offset+8, count, offset+size, address);
+			} else if (type == PT_SR && size>=28) {
+				parseReportBlocks(buffer, getInt(buffer, offset+4, 4), offset+28, count, offset+size, address);
+			} else if (type == PT_SDES) {
+				parseSdes(buffer, offset+4, count, offset+size, address);
+			} else if (type == PT_BYE) {
+				for (int i=0;i<count && offset+8+4*i<=offset+size;i++) {
+					int ssrc = getInt(buffer, offset+4+4*i, 4);
+					ReceptionReport report = mReports.get(ssrc);
+					Log.d(TAG, "BYE from "+Integer.toHexString(ssrc));
+					if (report == null) continue;
+					report = report.withBye();
+					mReports.put(ssrc, report);
+					// The congestion controller forgets the receiver
+					final Listener listener = mListener;
+					if (listener != null) listener.onReceptionReport(report);
+				}
+			}
+			offset += size;
+		}
+	}
+
+	/**
+	 * A report block is 24 bytes long: SSRC of the source, fraction lost, cumulative number 
+	 * of packets lost, extended highest sequence number, jitter, LSR and DLSR.
+	 * The receivers of the stream only receive one source, so only the last block is kept.
+	 */
+	private void parseReportBlocks(byte[] buffer, int ssrc, int offset, int count, int end, InetAddress address) {
+		for (int i=0;i<count && offset+24<=end;i++, offset+=24) {
+			int fraction = buffer[offset+4]&0xFF;
+			// The cumulative number of packets lost is a signed 24 bits integer
+			int cumulative = (getInt(buffer, offset+5, 3)<<8)>>8;
+			long highest = getInt(buffer, offset+8, 4)&0xFFFFFFFFL;
+			long jitter = getInt(buffer, offset+12, 4)&0xFFFFFFFFL;
+			long lsr = getInt(buffer, offset+16, 4)&0xFFFFFFFFL;
+			long dlsr = getInt(buffer, offset+20, 4)&0xFFFFFFFFL;
+			ReceptionReport previous = mReports.get(ssrc);
+			ReceptionReport report = new ReceptionReport(ssrc, previous != null ? previous.getCname() : null, 
+					fraction, cumulative, highest, jitter, roundTripTime(lsr, dlsr), SystemClock.elapsedRealtime(), false, address);
+			mReports.put(ssrc, report);
+			final Listener listener = mListener;
+			if (listener != null) listener.onReceptionReport(report);
+		}
+	}
+
+	/**
+	 * Computes the round trip time with the LSR and DLSR fields of a report block, in the 
+	 * middle 32 bits of the NTP format. The NTP timestamps of the {@link SenderReport} are 
+	 * based on {@link System#nanoTime()}, so is the arrival time.
+	 * @return The round trip time in milliseconds or -1
+	 */
+	private static long roundTripTime(long lsr, long dlsr) {
+		if (lsr == 0) return -1;
+		long now = System.nanoTime();
+		long hb = now/1000000000;
+		long lb = ((now-hb*1000000000)*4294967296L)/1000000000;
+		long arrival = ((hb&0xFFFF)<<16) | (lb>>>16);
+		long rtt = (arrival-lsr-dlsr)&0xFFFFFFFFL;
+		// More than a minute means that the clock of the receiver is not usable
+		return rtt<60*65536L ? rtt*1000/65536 : -1;
+	}
+
+	/** Parses the chunks of a SDES packet, only the CNAME items are kept. */
+	private void parseSdes(byte[] buffer, int offset, int count, int end, InetAddress address) {
+		for (int i=0;i<count && offset+4<=end;i++) {
+			int ssrc = getInt(buffer, offset, 4);
+			offset += 4;
+			while (offset<end && buffer[offset] != 0) {
+				int type = buffer[offset]&0xFF;
+				int length = offset+1<end ? buffer[offset+1]&0xFF : 0;
+				if (offset+2+length>end) return;
+				if (type == SDES_CNAME) {
+					String cname = new String(buffer, offset+2, length);
+					ReceptionReport report = mReports.get(ssrc);
+					mReports.put(ssrc, report != null ? report.withCname(cname) : 
+						new ReceptionReport(ssrc, cname, 0, 0, 0, 0, -1, SystemClock.elapsedRealtime(), false, address));
+				}
+				offset += 2+length;
+			}
+			// The list of items ends with a null byte and is padded to 32 bits
+			offset = (offset+4)&~3;
+		}
+	}
+
+	/**
+	 * Each FCI entry of a Generic NACK holds the sequence number of a lost packet (PID) and
+	 * a bitmask of the following 16 packets lost (BLP).
+	 */
+	private void parseNack(byte[] buffer, int offset, int size) {
+		final Listener listener = mListener;
+		if (listener == null || size<16) return;
+		int ssrc = getInt(buffer, offset+8, 4);
+		int entries = (size-12)/4;
+		int[] lost = new int[entries*17];
+		int n = 0;
+		for (int i=0;i<entries;i++) {
+			int pid = getInt(buffer, offset+12+4*i, 2);
+			int blp = getInt(buffer, offset+14+4*i, 2);
+			lost[n++] = pid;
+			for (int j=0;j<16;j++) {
+				if ((blp&(1<<j)) != 0) lost[n++] = (pid+j+1)&0xFFFF;
+			}
+		}
+		int[] sequences = new int[n];
+		System.arraycopy(lost, 0, sequences, 0, n);
+		listener.onNack(ssrc, sequences);
+	}
+
+	private static int getInt(byte[] buffer, int begin, int length) {
+		int n = 0;
+		for (int i=begin;i<begin+length;i++) {
+			n = (n<<8) | (buffer[i]&0xFF);
+		}
+		return n;
+	}
+
+}
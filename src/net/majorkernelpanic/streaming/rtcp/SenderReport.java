@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.util.Collection;
+import java.util.Collections;
 import java.nio.channels.IllegalSelectorException;
 
 import android.os.SystemClock;
@@ -43,6 +45,7 @@ public class SenderReport {
 	private int ssrc, port = -1;
 	private int octetCount = 0, packetCount = 0;
 	private long interval, delta, now, oldnow;
+	private RtcpReceiver receiver = null;
 
 	public SenderReport(int ssrc) throws IOException {
 		super();
@@ -86,9 +89,24 @@ public class SenderReport {
 	}
 
 	public void close() {
+		setListener(null);
 		usock.close();
 	}
 
+	/**
+	 * Reads the RTCP packets sent back by the receiver on the socket of the report.
+	 * @param listener Called when feedback is received, null to stop reading
+	 */
+	public synchronized void setListener(RtcpReceiver.Listener listener) {
+		if (listener == null) {
+			if (receiver != null) receiver.stop();
+		} else {
+			if (receiver == null) receiver = new RtcpReceiver(usock, listener);
+			receiver.setListener(listener);
+			receiver.start();
+		}
+	}
+
 	/**
 	 * Sets the temporal interval between two RTCP Sender Reports.
 	 * Default interval is set to 5 secondes.
@@ -123,8 +141,18 @@ public class SenderReport {
 		
 	}
 
-	public void setSSRC(int ssrc) {
+	/** 
+	 * Returns the last report of each receiver of the stream, the reports are 
+	 * only received while a listener is set with {@link #setListener(RtcpReceiver.Listener)}.
+	 */
+	public synchronized Collection<ReceptionReport> getReceptionReports() {
+		if (receiver == null) return Collections.emptyList();
+		return receiver.getReports();
+	}
+
+	public synchronized void setSSRC(int ssrc) {
 		this.ssrc = ssrc; 
+		if (receiver != null) receiver.clearReports();
 		setLong(ssrc,4,8);
 		packetCount = 0;
 		octetCount = 0;
@@ -32,8 +32,9 @@ import android.util.Log;
  *
  *   This packetizer must be fed with an InputStream containing ADTS AAC. 
  *   AAC will basically be rewrapped in an RTP stream and sent over the network.
- *   This packetizer only implements the aac-hbr mode (High Bit-rate AAC) and
- *   each packet only carry a single and complete AAC access unit.
+ *   This packetizer only implements the aac-hbr mode (High Bit-rate AAC). Several
+ *   AAC access units can be bundled in a packet, see {@link #setMaxAggregationDelay(int)}.
+ *   Access units too large for a packet are fragmented.
  * 
  */
 public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
@@ -42,6 +43,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	private Thread t;
 	private int samplingRate = 8000;
+	private final AacAggregator aggregator = new AacAggregator(this);
 
 	public AACADTSPacketizer() {
 		super();
@@ -72,6 +74,14 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/**
+	 * Sets how long an access unit may wait for the next ones so that they are sent in the same packet.
+	 * @param delay The delay in milliseconds, 0 to send each access unit in its own packet
+	 */
+	public void setMaxAggregationDelay(int delay) {
+		aggregator.setMaxDelay(delay);
+	}
+
 	public void run() {
 
 		Log.d(TAG,"AAC ADTS packetizer started !");
@@ -87,6 +97,9 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		int frameLength, sum, length, nbau, nbpk, samplingRateIndex, profile;
 		long oldtime = SystemClock.elapsedRealtime(), now = oldtime;
 		byte[] header = new byte[8]; 
+		long duration;
+
+		aggregator.reset();
 
 		try {
 			while (!Thread.interrupted()) {
@@ -113,7 +126,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				nbau = (header[6]&0x03) + 1;
 
 				// The number of RTP packets that will be sent for this ADTS frame
-				nbpk = frameLength/MAXPACKETSIZE + 1;
+				nbpk = frameLength/maxPacketSize + 1;
 
 				// Read CRS if any
 				if (!protection) is.read(header,0,2);
@@ -122,10 +135,19 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				profile = ( (header[2]&0xC0) >> 6 ) + 1 ;
 
 				// We update the RTP timestamp
-				ts +=  1024L*1000000000L/samplingRate; //stats.average();
+				duration = 1024L*1000000000L/samplingRate;
+				ts +=  duration; //stats.average();
 
 				//Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p: "+profile+" sr: "+samplingRate);
 
+				if (frameLength<=aggregator.getMaxSize()) {
+					fill(buffer, aggregator.add(ts, frameLength), frameLength);
+					aggregator.added(duration);
+					continue;
+				}
+
+				// The access unit is fragmented, fragments can't be aggregated
+				aggregator.flush();
 				sum = 0;
 				while (sum<frameLength) {
 
@@ -133,8 +155,8 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 					socket.updateTimestamp(ts);
 
 					// Read frame
-					if (frameLength-sum > MAXPACKETSIZE-rtphl-4) {
-						length = MAXPACKETSIZE-rtphl-4;
+					if (frameLength-sum > maxPacketSize-rtphl-4) {
+						length = maxPacketSize-rtphl-4;
 					}
 					else {
 						length = frameLength-sum;
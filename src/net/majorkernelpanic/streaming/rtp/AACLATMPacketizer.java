@@ -21,6 +21,7 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
 import android.media.MediaCodec.BufferInfo;
@@ -31,6 +32,7 @@ import android.util.Log;
  * RFC 3640.  
  * 
  * Encapsulates AAC Access Units in RTP packets as specified in the RFC 3640.
+ * Several access units can be bundled in a packet, see {@link #setMaxAggregationDelay(int)}.
  * This packetizer is used by the AACStream class in conjunction with the 
  * MediaCodec API introduced in Android 4.1 (API Level 16).       
  * 
@@ -41,6 +43,8 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 	private final static String TAG = "AACLATMPacketizer";
 
 	private Thread t;
+	private int samplingRate = 8000;
+	private final AacAggregator aggregator = new AacAggregator(this);
 
 	public AACLATMPacketizer() {
 		super();
@@ -68,59 +72,59 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 	}
 
 	public void setSamplingRate(int samplingRate) {
+		this.samplingRate = samplingRate;
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/**
+	 * Sets how long an access unit may wait for the next ones so that they are sent in the same packet.
+	 * @param delay The delay in milliseconds, 0 to send each access unit in its own packet
+	 */
+	public void setMaxAggregationDelay(int delay) {
+		aggregator.setMaxDelay(delay);
+	}
+
 	@SuppressLint("NewApi")
 	public void run() {
 
 		Log.d(TAG,"AAC LATM packetizer started !");
 
+		MediaCodecInputStream input = (MediaCodecInputStream) is;
+		ByteBuffer au;
 		int length = 0;
-		long oldts;
+		long oldts, duration = 1024L*1000000000L/samplingRate;
 		BufferInfo bufferInfo;
 
+		aggregator.reset();
+
 		try {
 			while (!Thread.interrupted()) {
-				buffer = socket.requestBuffer();
-				length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
-				
-				if (length>0) {
-					
-					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
+				// The access unit is copied from the output buffer of the encoder right in the packet
+				au = input.dequeueBuffer();
+				try {
+					bufferInfo = input.getLastBufferInfo();
+					length = bufferInfo.size;
 					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
 					oldts = ts;
 					ts = bufferInfo.presentationTimeUs*1000;
-					
+
 					// Seems to happen sometimes
-					if (oldts>ts) {
-						socket.commitBuffer();
+					if (oldts>ts || length<=0) continue;
+
+					if (length>aggregator.getMaxSize()) {
+						Log.e(TAG,"AU too large for the MTU: "+length);
 						continue;
 					}
-					
-					socket.markNextPacket();
-					socket.updateTimestamp(ts);
-					
-					// AU-headers-length field: contains the size in bits of a AU-header
-					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
-					// 13 bits will be enough because ADTS uses 13 bits for frame length
-					buffer[rtphl] = 0;
-					buffer[rtphl+1] = 0x10; 
-
-					// AU-size
-					buffer[rtphl+2] = (byte) (length>>5);
-					buffer[rtphl+3] = (byte) (length<<3);
-
-					// AU-Index
-					buffer[rtphl+3] &= 0xF8;
-					buffer[rtphl+3] |= 0x00;
-					
-					send(rtphl+length+4);
-					
-				} else {
-					socket.commitBuffer();
-				}		
-				
+
+					int offset = aggregator.add(ts, length);
+					au.limit(bufferInfo.offset+length);
+					au.position(bufferInfo.offset);
+					au.get(buffer, offset, length);
+					aggregator.added(duration);
+				} finally {
+					au.clear();
+					input.releaseBuffer();
+				}
 			}
 		} catch (IOException e) {
 		} catch (ArrayIndexOutOfBoundsException e) {
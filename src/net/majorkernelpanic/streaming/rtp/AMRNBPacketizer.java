@@ -26,13 +26,15 @@ import android.util.Log;
 
 /**
  * 
- *   RFC 3267.
+ *   RFC 3267 / RFC 4867.
  *   
- *   AMR Streaming over RTP.
+ *   AMR Streaming over RTP, octet-aligned mode.
  *   
  *   Must be fed with an InputStream containing raw amr nb
  *   Stream must begin with a 6 bytes long header: "#!AMR\n", it will be skipped
  *   
+ *   Several frames can be bundled in a packet, see {@link #setFramesPerPacket(int)}.
+ *   
  */
 public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
@@ -43,6 +45,10 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244};
 	private int samplingRate = 8000;
 
+	/** Frames bundled in a packet are 20 ms long, a packet holds at most 200 ms of audio. */
+	public static final int MAX_FRAMES_PER_PACKET = 10;
+	private int framesPerPacket = 1;
+
 	private Thread t;
 
 	public AMRNBPacketizer() {
@@ -70,9 +76,22 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/** 
+	 * Sets the number of 20 ms frames sent in each packet. 
+	 * Must be called before the packetizer is started.
+	 */
+	public void setFramesPerPacket(int frames) {
+		framesPerPacket = Math.max(1, Math.min(MAX_FRAMES_PER_PACKET, frames));
+	}
+
+	public int getFramesPerPacket() {
+		return framesPerPacket;
+	}
+
 	public void run() {
 
-		int frameLength, frameType;
+		int frameLength, frameType, offset, toc;
+		final int frames = framesPerPacket;
 		long now = System.nanoTime(), oldtime = now;
 		byte[] header = new byte[AMR_HEADER_LENGTH];
 
@@ -90,28 +109,43 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 				buffer = socket.requestBuffer();
 				buffer[rtphl] = (byte) 0xF0;
-				
-				// First we read the frame header
-				fill(buffer, rtphl+1,AMR_FRAME_HEADER_LENGTH);
 
-				// Then we calculate the frame payload length
-				frameType = (Math.abs(buffer[rtphl + 1]) >> 3) & 0x0f;
-				frameLength = (sFrameBits[frameType]+7)/8;
+				// The CMR is followed by the table of contents (one entry per frame), then by the frames
+				offset = rtphl+1+frames*AMR_FRAME_HEADER_LENGTH;
+
+				for (int i=0;i<frames;i++) {
+
+					// First we read the frame header, it is also its entry in the table of contents
+					toc = rtphl+1+i*AMR_FRAME_HEADER_LENGTH;
+					fill(buffer, toc, AMR_FRAME_HEADER_LENGTH);
+
+					// Then we calculate the frame payload length
+					frameType = (Math.abs(buffer[toc]) >> 3) & 0x0f;
+					frameLength = (sFrameBits[frameType]+7)/8;
+
+					// And we read the payload
+					fill(buffer, offset, frameLength);
+					offset += frameLength;
+
+					//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
+
+					// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
+					// FIXME: Is this really always the case ??
+					ts += 160L*1000000000L/samplingRate; //stats.average();
+
+					// The timestamp of the packet is the one of its first frame
+					if (i == 0) socket.updateTimestamp(ts);
 
-				// And we read the payload
-				fill(buffer, rtphl+2,frameLength);
+					// F bit: another frame follows in the packet
+					if (i<frames-1) buffer[toc] |= 0x80;
 
-				//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
+				}
 
-				// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
-				// FIXME: Is this really always the case ??
-				ts += 160L*1000000000L/samplingRate; //stats.average();
-				socket.updateTimestamp(ts);
 				socket.markNextPacket();
 
 				//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
 				
-				send(rtphl+1+AMR_FRAME_HEADER_LENGTH+frameLength);
+				send(offset);
 				
 			}
 
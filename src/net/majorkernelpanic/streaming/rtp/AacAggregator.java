@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+
+/**
+ * Puts several AAC access units in each RTP packet (RFC 3640, mode AAC-hbr).
+ * 
+ * The AUs are written in a buffer of the {@link RtpSocket}, after some room left for their 
+ * AU-headers. When the packet is sent, the AUs are moved right after the AU-headers.
+ * An AU never waits more than the maximum aggregation delay before being sent.
+ */
+class AacAggregator {
+
+	/** Maximum number of AUs in a packet. The room left for their AU-headers fits in the UDP header margin of the buffers. */
+	public static final int MAX_AUS = 8;
+
+	// AU-headers-length and one 16 bits AU-header per AU
+	private static final int RESERVED = 2+2*MAX_AUS;
+
+	private final AbstractPacketizer packetizer;
+	private final int[] sizes = new int[MAX_AUS];
+	private int count = 0, end = 0;
+	private long first = 0, last = 0, maxDelay = 0;
+
+	public AacAggregator(AbstractPacketizer packetizer) {
+		this.packetizer = packetizer;
+	}
+
+	/**
+	 * Sets how long the first AU of a packet may wait for the next ones.
+	 * @param delay The delay in milliseconds, 0 to send each AU in its own packet
+	 */
+	public void setMaxDelay(int delay) {
+		maxDelay = delay*1000000L;
+	}
+
+	public void reset() {
+		count = 0;
+	}
+
+	/** Returns the largest AU that fits in a packet. Larger AUs must be fragmented. */
+	public int getMaxSize() {
+		return packetizer.maxPacketSize-AbstractPacketizer.rtphl-4;
+	}
+
+	/**
+	 * Makes room for an AU in the packet being built. The packet is sent first 
+	 * if the AU does not fit in it. The AU must then be written by the caller in 
+	 * the buffer of the packetizer, before {@link #added(long)} is called.
+	 * @param ts The timestamp of the AU in nanoseconds
+	 * @param size The size of the AU, at most {@link #getMaxSize()}
+	 * @return The offset of the AU in the buffer of the packetizer
+	 */
+	public int add(long ts, int size) throws IOException, InterruptedException {
+		final int rtphl = AbstractPacketizer.rtphl;
+		if (count>0 && (count == MAX_AUS || ts<last || 
+				end-RESERVED+2+2*(count+1)+size>packetizer.maxPacketSize)) {
+			flush();
+		}
+		if (count == 0) {
+			packetizer.buffer = packetizer.socket.requestBuffer();
+			packetizer.socket.updateTimestamp(ts);
+			first = ts;
+			end = rtphl+RESERVED;
+		}
+		int offset = end;
+		sizes[count++] = size;
+		end += size;
+		last = ts;
+		return offset;
+	}
+
+	/**
+	 * Sends the packet if the next AU would make its first AU wait too long.
+	 * @param duration The duration of an AU in nanoseconds
+	 */
+	public void added(long duration) throws IOException {
+		if (last+duration-first>maxDelay) flush();
+	}
+
+	/** Sends the packet being built, if any. */
+	public void flush() throws IOException {
+		if (count == 0) return;
+		final int rtphl = AbstractPacketizer.rtphl;
+		final byte[] buffer = packetizer.buffer;
+		int headers = 2+2*count;
+
+		// AU-headers-length field: the size in bits of the AU-headers
+		// 13+3 = 16 bits per AU-header -> 13 bits for AU-size and 3 bits for AU-Index / AU-Index-delta 
+		buffer[rtphl] = (byte) ((16*count)>>8);
+		buffer[rtphl+1] = (byte) (16*count);
+
+		// AU-size, AU-Index and AU-Index-delta are 0 because AUs are consecutive
+		for (int i=0;i<count;i++) {
+			buffer[rtphl+2+2*i] = (byte) (sizes[i]>>5);
+			buffer[rtphl+3+2*i] = (byte) ((sizes[i]<<3)&0xF8);
+		}
+
+		System.arraycopy(buffer, rtphl+RESERVED, buffer, rtphl+headers, end-rtphl-RESERVED);
+		count = 0;
+
+		// The packet only carries complete AUs
+		packetizer.socket.markNextPacket();
+		packetizer.send(end-RESERVED+headers);
+	}
+
+}
@@ -36,8 +36,8 @@ abstract public class AbstractPacketizer {
 
 	protected static final int rtphl = RtpSocket.RTP_HEADER_LENGTH;
 	
-	// Maximum size of RTP packets
-	protected final static int MAXPACKETSIZE = RtpSocket.MTU-28;
+	// Maximum size of RTP packets, follows the MTU of the RtpSocket
+	protected int maxPacketSize = RtpSocket.MTU-RtpSocket.UDP_HEADER_LENGTH;
 
 	protected RtpSocket socket = null;
 	protected InputStream is = null;
@@ -45,6 +45,9 @@ abstract public class AbstractPacketizer {
 	
 	protected long ts = 0;
 
+	// Makes up the timestamps of the streams that come without them
+	protected final TimestampEngine timestamps = new TimestampEngine();
+
 	public AbstractPacketizer() {
 		int ssrc = new Random().nextInt();
 		ts = new Random().nextInt();
@@ -77,6 +80,16 @@ abstract public class AbstractPacketizer {
 		socket.setTimeToLive(ttl);
 	}
 
+	/** 
+	 * Sets the MTU of the path to the receivers, packets are split accordingly.
+	 * Must be called before the packetizer is started.
+	 * @see RtpSocket#setMtu(int)
+	 */
+	public void setMtu(int mtu) {
+		socket.setMtu(mtu);
+		maxPacketSize = socket.getMaxPacketSize();
+	}
+
 	/**
 	 * Sets the destination of the stream.
 	 * @param dest The destination address of the stream
@@ -87,6 +100,14 @@ abstract public class AbstractPacketizer {
 		socket.setDestination(dest, rtpPort, rtcpPort);		
 	}
 
+	/**
+	 * Sets the nominal frame rate of the stream, used to make up the 
+	 * timestamps of the streams of the MediaRecorder API.
+	 */
+	public void setFrameRate(double framerate) {
+		timestamps.setFrameRate(framerate);
+	}
+
 	/** Starts the packetizer. */
 	public abstract void start();
 
@@ -105,65 +126,4 @@ abstract public class AbstractPacketizer {
 		return str;
 	}
 
-	/** Used in packetizers to estimate timestamps in RTP packets. */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=700, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 10000000000L;
-		private boolean initoffset = false;
-		
-		public Statistics() {}
-		
-		public Statistics(int count, int period) {
-			this.count = count;
-			this.period = period;
-		}
-		
-		public void reset() {
-			initoffset = false;
-			q = 0; m = 0; c = 0;
-			elapsed = 0;
-			start = 0;
-			duration = 0;
-		}
-		
-		public void push(long value) {
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				// Prevents drifting issues by comparing the real duration of the 
-				// stream with the sum of all temporal lengths of RTP packets. 
-				value += (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<5) {
-				// We ignore the first 20 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m;
-			duration += l;
-			return l;
-		}
-
-	}
-	
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a copy of the RTP packets sent since the last key frame: the SPS and PPS, the IDR 
+ * and the frames that depend on it. A viewer joining a running stream is sent the current 
+ * group of pictures right away, so it does not wait for the next IDR to start decoding.
+ *
+ * The packets are stored one after the other in a single array. When the group grows larger 
+ * than the cap, it is dropped and nothing is cached until the next key frame.
+ * The methods are called by the {@link RtpSocket} with the lock of the cache held.
+ */
+public class GopCache {
+
+	/** Default cap of the cache in bytes. */
+	public static final int DEFAULT_MAX_SIZE = 1024*1024;
+
+	/** Largest cap accepted, the cache is allocated in one piece at the first key frame. */
+	public static final int MAX_SIZE = 8*1024*1024;
+
+	private final int mMaxSize;
+	private byte[] mData = null;
+	private int[] mOffsets = new int[256];
+	private int[] mLengths = new int[256];
+	private long[] mTimestamps = new long[256];
+	private int mCount = 0, mSize = 0;
+	private boolean mValid = false;
+
+	// Incremented each time a new group starts, so that a replay knows when its group is gone
+	private int mGeneration = 0;
+
+	private int mHits = 0, mMisses = 0;
+
+	/** @param maxSize The cap of the cache in bytes */
+	public GopCache(int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/** Drops the cached group, a new one starts at the next key frame. */
+	void reset() {
+		mCount = 0;
+		mSize = 0;
+		mValid = false;
+		mGeneration++;
+	}
+
+	/**
+	 * Adds a packet to the current group.
+	 * @param keyFrame True if the packet is the first one of a key frame, a new group starts
+	 * @param timestamp The timestamp of the packet in nanoseconds
+	 */
+	void add(byte[] packet, int length, long timestamp, boolean keyFrame) {
+		if (keyFrame) {
+			reset();
+			mValid = true;
+			// The array is only allocated for the streams that have key frames
+			if (mData == null) mData = new byte[mMaxSize];
+		}
+		if (!mValid) return;
+		if (mSize+length>mMaxSize) {
+			// The group is too large, it will not be replayed
+			reset();
+			return;
+		}
+		if (mCount == mLengths.length) {
+			mOffsets = Arrays.copyOf(mOffsets, mCount*2);
+			mLengths = Arrays.copyOf(mLengths, mCount*2);
+			mTimestamps = Arrays.copyOf(mTimestamps, mCount*2);
+		}
+		System.arraycopy(packet, 0, mData, mSize, length);
+		mOffsets[mCount] = mSize;
+		mLengths[mCount] = length;
+		mTimestamps[mCount] = timestamp;
+		mSize += length;
+		mCount++;
+	}
+
+	/** Returns true if a group is cached, and counts the hit or the miss. */
+	boolean lookup() {
+		boolean hit = mValid && mCount>0;
+		if (hit) mHits++; else mMisses++;
+		return hit;
+	}
+
+	/**
+	 * Copies a packet of the current group.
+	 * @return The length of the packet
+	 */
+	int get(int index, byte[] buffer) {
+		System.arraycopy(mData, mOffsets[index], buffer, 0, mLengths[index]);
+		return mLengths[index];
+	}
+
+	/** Returns the timestamp of a packet of the current group in nanoseconds. */
+	long getTimestamp(int index) {
+		return mTimestamps[index];
+	}
+
+	int getGeneration() {
+		return mGeneration;
+	}
+
+	/** Returns the number of packets of the current group. */
+	public synchronized int getPacketCount() {
+		return mCount;
+	}
+
+	/** Returns the size of the current group in bytes. */
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/** Returns how many viewers were sent the cached group when they joined. */
+	public synchronized int getHits() {
+		return mHits;
+	}
+
+	/** Returns how many viewers joined while no group was cached. */
+	public synchronized int getMisses() {
+		return mMisses;
+	}
+
+}
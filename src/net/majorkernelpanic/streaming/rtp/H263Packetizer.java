@@ -36,7 +36,6 @@ import android.util.Log;
 public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H263Packetizer";
-	private Statistics stats = new Statistics();
 
 	private Thread t;
 
@@ -66,11 +65,10 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 	}
 
 	public void run() {
-		long time, duration = 0;
 		int i = 0, j = 0, tr;
 		boolean firstFragment = true;
 		byte[] nextBuffer;
-		stats.reset();
+		timestamps.reset();
 
 		try { 
 			while (!Thread.interrupted()) {
@@ -82,13 +80,11 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 				buffer[rtphl] = 0;
 				buffer[rtphl+1] = 0;
 				
-				time = System.nanoTime();
-				if (fill(rtphl+j+2,MAXPACKETSIZE-rtphl-j-2)<0) return;
-				duration += System.nanoTime() - time;
+				if (fill(rtphl+j+2,maxPacketSize-rtphl-j-2)<0) return;
 				j = 0;
 				// Each h263 frame starts with: 0000 0000 0000 0000 1000 00??
 				// Here we search where the next frame begins in the bit stream
-				for (i=rtphl+2;i<MAXPACKETSIZE-1;i++) {
+				for (i=rtphl+2;i<maxPacketSize-1;i++) {
 					if (buffer[i]==0 && buffer[i+1]==0 && (buffer[i+2]&0xFC)==0x80) {
 						j=i;
 						break;
@@ -106,21 +102,20 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 				}
 				if (j>0) {
 					// We have found the end of the frame
-					stats.push(duration);
-					ts+= stats.average(); duration = 0;
-					//Log.d(TAG,"End of frame ! duration: "+stats.average());
+					ts += timestamps.push(System.nanoTime());
+					//Log.d(TAG,"End of frame ! period: "+timestamps.getPeriod());
 					// The last fragment of a frame has to be marked
 					socket.markNextPacket();
 					send(j);
 					nextBuffer = socket.requestBuffer();
-					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,MAXPACKETSIZE-j-2);
+					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,maxPacketSize-j-2);
 					buffer = nextBuffer;
-					j = MAXPACKETSIZE-j-2;
+					j = maxPacketSize-j-2;
 					firstFragment = true;
 				} else {
 					// We have not found the beginning of another frame
 					// The whole packet is a fragment of a frame
-					send(MAXPACKETSIZE);
+					send(maxPacketSize);
 				}
 			}
 		} catch (IOException e) { 
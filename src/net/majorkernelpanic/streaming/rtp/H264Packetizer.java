@@ -21,8 +21,10 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec.BufferInfo;
 import android.util.Log;
 
 /**
@@ -34,6 +36,9 @@ import android.util.Log;
  *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
+ *   With a {@link MediaCodecInputStream}, the NAL units are found in place in the output 
+ *   buffers of the encoder with a {@link NalScanner}, and copied only once, in the RTP packets.
+ *   
  */
 public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
@@ -41,13 +46,26 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
 	private Thread t = null;
 	private int naluLength = 0;
-	private long delay = 0, oldtime = 0;
-	private Statistics stats = new Statistics();
+	private long oldtime = 0;
 	private byte[] sps = null, pps = null;
 	byte[] header = new byte[5];	
 	private int count = 0;
 	private int streamType = 1;
 
+	// Output buffer of the encoder being packetized, null with the MediaRecorder API
+	private ByteBuffer nalBuffer = null;
+	private final NalScanner scanner = new NalScanner();
+
+	// Length of the STAP-A packet being built in buffer, 0 if none
+	private int stapLength = 0, stapCount = 0;
+	private long stapTs = 0;
+
+	// Timestamp of the last SPS or PPS sent, found in the stream or added by the packetizer
+	private long paramsTs = -1;
+
+	// Timestamp of the last key frame
+	private long keyTs = -1;
+
 
 	public H264Packetizer() {
 		super();
@@ -82,8 +100,11 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	public void run() {
 		long duration = 0, delta2 = 0;
 		Log.d(TAG,"H264 packetizer started !");
-		stats.reset();
+		timestamps.reset();
 		count = 0;
+		stapLength = 0;
+		paramsTs = -1;
+		keyTs = -1;
 
 		if (is instanceof MediaCodecInputStream) {
 			streamType = 1;
@@ -107,27 +128,13 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				delta2 += duration/1000000;
 				if (delta2>3000) {
 					delta2 = 0;
-					if (sps != null) {
-						buffer = socket.requestBuffer();
-						socket.markNextPacket();
-						socket.updateTimestamp(ts);
-						System.arraycopy(sps, 0, buffer, rtphl, sps.length);
-						super.send(rtphl+sps.length);
-					}
-					if (pps != null) {
-						buffer = socket.requestBuffer();
-						socket.updateTimestamp(ts);
-						socket.markNextPacket();
-						System.arraycopy(pps, 0, buffer, rtphl, pps.length);
-						super.send(rtphl+pps.length);
-					}					
+					// Both go in the same STAP-A packet
+					flush();
+					if (sps != null) aggregate(sps, sps.length);
+					if (pps != null) aggregate(pps, pps.length);
+					flush();
 				}
 
-				stats.push(duration);
-				// Computes the average duration of a NAL unit
-				delay = stats.average();
-				//Log.d(TAG,"duration: "+duration/1000000+" delay: "+delay/1000000);
-
 			}
 		} catch (IOException e) {
 		} catch (InterruptedException e) {}
@@ -140,40 +147,65 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 	 * Reads a NAL unit in the FIFO and sends it.
 	 * If it is too big, we split it in FU-A units (RFC 3984).
 	 */
-	@SuppressLint("NewApi")
 	private void send() throws IOException, InterruptedException {
-		int sum = 1, len = 0, type;
-
 		if (streamType == 0) {
 			// NAL units are preceeded by their length, we parse the length
 			fill(header,0,5);
-			ts += delay;
 			naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
 			if (naluLength>100000 || naluLength<0) resync();
-		} else if (streamType == 1) {
-			// NAL units are preceeded with 0x00000001
-			fill(header,0,5);
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
-			if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-				// Turns out, the NAL units are not preceeded with 0x00000001
-				Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-				streamType = 2; 
-				return;
-			}
+			// Each slice is a new frame, the other NAL units share the timestamp of the previous frame
+			int type = header[4]&0x1F;
+			if (type == 1 || type == 5) ts += timestamps.push(System.nanoTime());
+			packetize();
 		} else {
-			// Nothing preceededs the NAL units
-			fill(header,0,1);
-			header[4] = header[0];
-			ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-			//ts += delay;
-			naluLength = is.available()+1;
+			sendAccessUnit();
 		}
+	}
+
+	/**
+	 * Sends all the NAL units of the next output buffer of the encoder. They are 
+	 * preceeded by 0x000001 or 0x00000001, or the buffer holds a single NAL unit.
+	 * SPS, PPS and IDR slices often come together in the same buffer.
+	 */
+	@SuppressLint("NewApi")
+	private void sendAccessUnit() throws IOException, InterruptedException {
+		MediaCodecInputStream input = (MediaCodecInputStream) is;
+		ByteBuffer buf = input.dequeueBuffer();
+		try {
+			BufferInfo info = input.getLastBufferInfo();
+			ts = info.presentationTimeUs*1000L;
+			scanner.reset(buf, info.offset, info.size);
+			nalBuffer = buf;
+			while (scanner.next()) {
+				buf.limit(scanner.getStart()+scanner.getLength());
+				buf.position(scanner.getStart());
+				header[4] = buf.get();
+				naluLength = scanner.getLength();
+				packetize();
+			}
+			// The access unit is complete
+			flush();
+		} finally {
+			nalBuffer = null;
+			buf.clear();
+			input.releaseBuffer();
+		}
+	}
+
+	/** Sends the NAL unit whose header is in header[4] and whose length is naluLength. */
+	private void packetize() throws IOException, InterruptedException {
+		int sum = 1, len = 0, type;
 
 		// Parses the NAL unit type
 		type = header[4]&0x1F;
 
+		// A new group of pictures starts with the SPS of a key frame, or with the IDR
+		if ((type == 7 || type == 5) && keyTs != ts) {
+			flush();
+			socket.markKeyFrame();
+			keyTs = ts;
+		}
+
 		// The stream already contains NAL unit type 7 or 8, we don't need 
 		// to add them to the stream ourselves
 		if (type == 7 || type == 8) {
@@ -183,23 +215,30 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				sps = null;
 				pps = null;
 			}
+			paramsTs = ts;
+		}
+
+		// The SPS and PPS are sent in front of each IDR, so that a receiver that 
+		// just joined (or asked for a key frame) can decode it right away
+		if (type == 5 && paramsTs != ts && sps != null && pps != null) {
+			aggregate(sps, sps.length);
+			aggregate(pps, pps.length);
+			paramsTs = ts;
 		}
 
-		//Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
+		//Log.d(TAG,"- Nal unit length: " + naluLength + " type: "+type);
 
-		// Small NAL unit => Single NAL unit 
-		if (naluLength<=MAXPACKETSIZE-rtphl-2) {
-			buffer = socket.requestBuffer();
-			buffer[rtphl] = header[4];
-			len = fill(buffer, rtphl+1,  naluLength-1);
-			socket.updateTimestamp(ts);
-			socket.markNextPacket();
-			super.send(naluLength+rtphl);
-			//Log.d(TAG,"----- Single NAL unit - len:"+len+" delay: "+delay);
+		// Small NAL unit => Single NAL unit or STAP-A
+		if (naluLength<=maxPacketSize-rtphl-2) {
+			aggregate(null, naluLength);
+			// Only the NAL units already received are aggregated, we never wait for the next one
+			if (nalBuffer == null && is.available()<=0) flush();
 		}
 		// Large NAL unit => Split nal unit 
 		else {
 
+			flush();
+
 			// Set FU-A header
 			header[1] = (byte) (header[4] & 0x1F);  // FU header type
 			header[1] += 0x80; // Start bit
@@ -212,7 +251,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 				buffer[rtphl] = header[0];
 				buffer[rtphl+1] = header[1];
 				socket.updateTimestamp(ts);
-				if ((len = fill(buffer, rtphl+2,  naluLength-sum > MAXPACKETSIZE-rtphl-2 ? MAXPACKETSIZE-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
+				if ((len = fill(buffer, rtphl+2,  naluLength-sum > maxPacketSize-rtphl-2 ? maxPacketSize-rtphl-2 : naluLength-sum  ))<0) return; sum += len;
 				// Last packet before next NAL
 				if (sum >= naluLength) {
 					// End bit on
@@ -227,7 +266,55 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 		}
 	}
 
+	/**
+	 * Appends a small NAL unit to the STAP-A packet being built (RFC 6184 5.7.1). 
+	 * The packet is sent first if the NAL unit does not fit or has another timestamp.
+	 * @param nal The NAL unit, or null to read it from the input stream, its header is then in header[4]
+	 * @param length The length of the NAL unit
+	 */
+	private void aggregate(byte[] nal, int length) throws IOException, InterruptedException {
+		if (stapLength>0 && (stapTs != ts || stapLength+2+length>maxPacketSize)) flush();
+		if (stapLength == 0) {
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			buffer[rtphl] = 0;
+			stapLength = rtphl+1;
+			stapCount = 0;
+			stapTs = ts;
+		}
+		buffer[stapLength] = (byte) (length>>8);
+		buffer[stapLength+1] = (byte) length;
+		if (nal != null) {
+			System.arraycopy(nal, 0, buffer, stapLength+2, length);
+		} else {
+			buffer[stapLength+2] = header[4];
+			fill(buffer, stapLength+3, length-1);
+		}
+		// The NRI of the STAP-A is the highest NRI of its NAL units
+		if ((buffer[stapLength+2]&0x60)>(buffer[rtphl]&0x60)) buffer[rtphl] = (byte) (buffer[stapLength+2]&0x60);
+		stapLength += 2+length;
+		stapCount++;
+	}
+
+	/** Sends the STAP-A packet being built, as a single NAL unit packet if it only holds one NAL unit. */
+	private void flush() throws IOException {
+		if (stapLength == 0) return;
+		if (stapCount == 1) {
+			System.arraycopy(buffer, rtphl+3, buffer, rtphl, stapLength-rtphl-3);
+			stapLength -= 3;
+		} else {
+			buffer[rtphl] += 24;
+		}
+		socket.markNextPacket();
+		super.send(stapLength);
+		stapLength = 0;
+	}
+
 	private int fill(byte[] buffer, int offset,int length) throws IOException {
+		if (nalBuffer != null) {
+			nalBuffer.get(buffer, offset, length);
+			return length;
+		}
 		int sum = 0, len;
 		while (sum<length) {
 			len = is.read(buffer, offset+sum, length-sum);
@@ -70,26 +70,8 @@ public class MediaCodecInputStream extends InputStream {
 
 		try {
 			if (mBuffer==null) {
-				while (!Thread.interrupted() && !mClosed) {
-					mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-					if (mIndex>=0 ){
-						//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
-						mBuffer = mBuffers[mIndex];
-						mBuffer.position(0);
-						break;
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-						mBuffers = mMediaCodec.getOutputBuffers();
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-						mMediaFormat = mMediaCodec.getOutputFormat();
-						Log.i(TAG,mMediaFormat.toString());
-					} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-						Log.v(TAG,"No buffer available...");
-						//return 0;
-					} else {
-						Log.e(TAG,"Message: "+mIndex);
-						//return 0;
-					}
-				}			
+				waitForBuffer();
+				mBuffer.position(0);
 			}
 			
 			if (mClosed) throw new IOException("This InputStream was closed");
@@ -108,6 +90,55 @@ public class MediaCodecInputStream extends InputStream {
 		return min;
 	}
 	
+	/**
+	 * Returns the next output buffer of the encoder, without copying it. 
+	 * The data is between {@link BufferInfo#offset} and {@link BufferInfo#offset}+{@link BufferInfo#size}
+	 * of {@link #getLastBufferInfo()}. The buffer must be given back with {@link #releaseBuffer()}.
+	 * Can't be used along with {@link #read(byte[], int, int)}.
+	 * @throws IOException If the stream was closed
+	 */
+	public ByteBuffer dequeueBuffer() throws IOException {
+		try {
+			waitForBuffer();
+		} catch (RuntimeException e) {
+			throw new IOException(e.getMessage());
+		}
+		if (mClosed || mBuffer == null) throw new IOException("This InputStream was closed");
+		return mBuffer;
+	}
+
+	/** Gives the buffer returned by {@link #dequeueBuffer()} back to the encoder. */
+	public void releaseBuffer() {
+		if (mBuffer != null) {
+			try {
+				mMediaCodec.releaseOutputBuffer(mIndex, false);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			mBuffer = null;
+		}
+	}
+
+	private void waitForBuffer() {
+		while (!Thread.interrupted() && !mClosed) {
+			mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+			if (mIndex>=0 ){
+				//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
+				mBuffer = mBuffers[mIndex];
+				break;
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				mBuffers = mMediaCodec.getOutputBuffers();
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				mMediaFormat = mMediaCodec.getOutputFormat();
+				Log.i(TAG,mMediaFormat.toString());
+			} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				Log.v(TAG,"No buffer available...");
+			} else {
+				Log.e(TAG,"Message: "+mIndex);
+			}
+		}
+	}
+
 	public int available() {
 		if (mBuffer != null) 
 			return mBufferInfo.size - mBuffer.position();
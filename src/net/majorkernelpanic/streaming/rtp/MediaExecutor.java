@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A small fixed pool of threads shared by all the tracks of all the sessions.
+ * 
+ * Tasks must never block: they are submitted when they have something to do (a packet
+ * was committed, a deadline expired) and give the thread back as soon as they are done,
+ * so the number of threads does not grow with the number of tracks.
+ * The scheduling latency (how late tasks start compared to when they were due) is measured.
+ */
+public class MediaExecutor {
+
+	public final static String TAG = "MediaExecutor";
+
+	private static volatile MediaExecutor sInstance = null;
+
+	/** Returns the executor shared by all the tracks. */
+	public static MediaExecutor getInstance() {
+		if (sInstance == null) {
+			synchronized (MediaExecutor.class) {
+				if (sInstance == null) {
+					int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+					sInstance = new MediaExecutor(threads);
+				}
+			}
+		}
+		return sInstance;
+	}
+
+	private final ScheduledThreadPoolExecutor mExecutor;
+	private final int mThreads;
+
+	// Scheduling latency, in nanoseconds
+	private final AtomicLong mTasks = new AtomicLong(0);
+	private final AtomicLong mTotalLatency = new AtomicLong(0);
+	private final AtomicLong mMaxLatency = new AtomicLong(0);
+
+	private MediaExecutor(int threads) {
+		mThreads = threads;
+		mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG+"-"+mCount.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MAX_PRIORITY);
+				return thread;
+			}
+		});
+		Log.d(TAG, "Media executor started with "+threads+" threads");
+	}
+
+	/** Runs the task as soon as a thread is available. */
+	public void execute(Runnable task) {
+		schedule(task, 0);
+	}
+
+	/**
+	 * Runs the task after a delay.
+	 * @param delay The delay in nanoseconds
+	 */
+	public ScheduledFuture<?> schedule(final Runnable task, long delay) {
+		final long due = System.nanoTime()+delay;
+		return mExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				measure(System.nanoTime()-due);
+				task.run();
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private void measure(long latency) {
+		if (latency<0) latency = 0;
+		mTasks.incrementAndGet();
+		mTotalLatency.addAndGet(latency);
+		long max;
+		while (latency>(max = mMaxLatency.get()) && !mMaxLatency.compareAndSet(max, latency));
+	}
+
+	/** Returns the number of threads of the executor. */
+	public int getThreadCount() {
+		return mThreads;
+	}
+
+	/** Returns the number of tasks run since the statistics were reset. */
+	public long getTaskCount() {
+		return mTasks.get();
+	}
+
+	/** Returns the average scheduling latency in microseconds. */
+	public long getAverageLatency() {
+		long tasks = mTasks.get();
+		return tasks>0 ? mTotalLatency.get()/tasks/1000 : 0;
+	}
+
+	/** Returns the highest scheduling latency in microseconds. */
+	public long getMaxLatency() {
+		return mMaxLatency.get()/1000;
+	}
+
+	public void resetStatistics() {
+		mTasks.set(0);
+		mTotalLatency.set(0);
+		mMaxLatency.set(0);
+	}
+
+}
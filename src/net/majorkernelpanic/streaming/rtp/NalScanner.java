@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the NAL units of an Annex B byte stream (NAL units preceded by 0x000001 
+ * or 0x00000001) in place, in a buffer returned by the encoder. Nothing is copied.
+ * If the buffer does not start with a start code, it is considered as a single NAL unit.
+ */
+public class NalScanner {
+
+	private ByteBuffer mBuffer;
+	private int mEnd, mNext, mStart, mLength;
+	private boolean mSingle;
+
+	public NalScanner() {}
+
+	/**
+	 * Starts scanning a new buffer.
+	 * @param buffer The buffer, its position and limit are not used
+	 * @param offset The offset of the data in the buffer
+	 * @param size The size of the data
+	 */
+	public void reset(ByteBuffer buffer, int offset, int size) {
+		mBuffer = buffer;
+		mEnd = offset+size;
+		mNext = find(offset);
+		mSingle = mNext != offset+3 && mNext != offset+4;
+		if (mSingle) mNext = offset;
+	}
+
+	/**
+	 * Moves to the next NAL unit of the buffer.
+	 * @return False if there is no NAL unit left
+	 */
+	public boolean next() {
+		while (mNext>=0 && mNext<mEnd) {
+			int start = mNext, end;
+			if (mSingle) {
+				end = mEnd;
+				mNext = -1;
+			} else {
+				int next = find(start);
+				end = next<0 ? mEnd : next-3;
+				mNext = next;
+			}
+			// Zero bytes before a start code belong to the start code (or are trailing_zero_8bits)
+			while (end>start && mBuffer.get(end-1) == 0) end--;
+			if (end>start) {
+				mStart = start;
+				mLength = end-start;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns true if {@link #next()} may find another NAL unit in the buffer. */
+	public boolean hasNext() {
+		return mNext>=0 && mNext<mEnd;
+	}
+
+	/** Returns the offset of the current NAL unit in the buffer, its header included. */
+	public int getStart() {
+		return mStart;
+	}
+
+	/** Returns the length of the current NAL unit, its header included. */
+	public int getLength() {
+		return mLength;
+	}
+
+	/** Returns the offset following the next start code, or -1 if there is none. */
+	private int find(int from) {
+		int i = from;
+		while (i+2<mEnd) {
+			byte b = mBuffer.get(i+2);
+			if (b>1 || b<0) {
+				// No start code can end at i, i+1 or i+2
+				i += 3;
+			} else if (b == 1 && mBuffer.get(i+1) == 0 && mBuffer.get(i) == 0) {
+				return i+3;
+			} else {
+				i++;
+			}
+		}
+		return -1;
+	}
+
+}
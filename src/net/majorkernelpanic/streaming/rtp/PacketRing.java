@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring used by the {@link RtpSocket}
+ * to hand packets from the packetizer thread to the sender thread.
+ *
+ * The ring only manages slot indices, the slots themselves (buffers, packets...)
+ * are owned by the caller. Exactly one thread may call {@link #claim()}/{@link #publish()}
+ * and exactly one other thread may call {@link #poll(long)}/{@link #release()}.
+ */
+public class PacketRing {
+
+	private final int mCapacity;
+
+	/** Number of slots published by the producer. */
+	private final Sequence mHead = new Sequence();
+
+	/** Number of slots released by the consumer. */
+	private final Sequence mTail = new Sequence();
+
+	// Thread that may be parked waiting for the other side, null otherwise
+	private volatile Thread mParkedProducer, mParkedConsumer;
+
+	// Producer side cache of mTail and consumer side cache of mHead
+	private long mCachedTail = 0, mCachedHead = 0;
+
+	private volatile WaitStrategy mWaitStrategy = WaitStrategy.DEFAULT;
+
+	public PacketRing(int capacity) {
+		if (capacity<=0) throw new IllegalArgumentException("Capacity must be positive !");
+		mCapacity = capacity;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/** Sets how a thread waits for the other side of the ring, it may be called while the ring is used. */
+	public void setWaitStrategy(WaitStrategy strategy) {
+		if (strategy == null) throw new IllegalArgumentException("The strategy can't be null !");
+		mWaitStrategy = strategy;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return mWaitStrategy;
+	}
+
+	/** Returns the number of slots that have been published but not yet released. */
+	public int size() {
+		return (int) (mHead.get()-mTail.get());
+	}
+
+	/**
+	 * Returns the index of the next free slot, waiting for the consumer if the ring is full.
+	 * Calling it twice without calling {@link #publish()} returns the same slot.
+	 * @throws InterruptedException If the producer thread is interrupted while waiting
+	 */
+	public int claim() throws InterruptedException {
+		final long head = mHead.get();
+		if (head-mCachedTail>=mCapacity) {
+			final WaitStrategy strategy = mWaitStrategy;
+			int counter = 0;
+			while (head-(mCachedTail = mTail.get())>=mCapacity) {
+				if (Thread.interrupted()) throw new InterruptedException();
+				if (counter<strategy.mSpins+strategy.mYields) {
+					strategy.idle(counter++);
+				} else {
+					mParkedProducer = Thread.currentThread();
+					if (head-mTail.get()>=mCapacity) LockSupport.parkNanos(this, WaitStrategy.MAX_PARK);
+					mParkedProducer = null;
+				}
+			}
+		}
+		return (int) (head%mCapacity);
+	}
+
+	/** Makes the slot returned by {@link #claim()} visible to the consumer. */
+	public void publish() {
+		mHead.set(mHead.get()+1);
+		final Thread consumer = mParkedConsumer;
+		if (consumer != null) LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Returns the index of the oldest published slot, waiting for the producer if the ring is empty.
+	 * @param timeout The maximum time to wait in nanoseconds
+	 * @return The index of the slot or -1 if nothing was published before the timeout expired
+	 * @throws InterruptedException If the consumer thread is interrupted while waiting
+	 */
+	public int poll(long timeout) throws InterruptedException {
+		final long tail = mTail.get();
+		if (tail>=mCachedHead) {
+			final long deadline = System.nanoTime()+timeout;
+			final WaitStrategy strategy = mWaitStrategy;
+			int counter = 0;
+			while (tail>=(mCachedHead = mHead.get())) {
+				if (Thread.interrupted()) throw new InterruptedException();
+				long remaining = deadline-System.nanoTime();
+				if (remaining<=0) return -1;
+				if (counter<strategy.mSpins+strategy.mYields) {
+					strategy.idle(counter++);
+				} else {
+					mParkedConsumer = Thread.currentThread();
+					if (tail>=mHead.get()) LockSupport.parkNanos(this, remaining<WaitStrategy.MAX_PARK?remaining:WaitStrategy.MAX_PARK);
+					mParkedConsumer = null;
+				}
+			}
+		}
+		return (int) (tail%mCapacity);
+	}
+
+	/** Gives the slot returned by {@link #poll(long)} back to the producer. */
+	public void release() {
+		mTail.set(mTail.get()+1);
+		final Thread producer = mParkedProducer;
+		if (producer != null) LockSupport.unpark(producer);
+	}
+
+	/**
+	 * Tells a thread waiting on the ring how to wait: it first busy spins, then yields
+	 * and finally parks until the other side of the ring signals it.
+	 */
+	public static class WaitStrategy {
+
+		/** Spins a little, then yields a little, then parks. */
+		public final static WaitStrategy DEFAULT = new WaitStrategy(100, 10);
+
+		/** Parks right away, the cheapest option for the CPU. */
+		public final static WaitStrategy PARK = new WaitStrategy(0, 0);
+
+		// Upper bound of a single park, protects against a missed signal
+		private final static long MAX_PARK = 10000000L;
+
+		private final int mSpins, mYields;
+
+		/**
+		 * @param spins Number of busy spins before yielding
+		 * @param yields Number of calls to {@link Thread#yield()} before parking
+		 */
+		public WaitStrategy(int spins, int yields) {
+			mSpins = spins;
+			mYields = yields;
+		}
+
+		private void idle(int counter) {
+			if (counter>=mSpins) Thread.yield();
+		}
+
+	}
+
+	/** A sequence counter padded on both sides so that it sits alone on its cache line. */
+	static class Sequence extends SequenceValue {
+		protected long p9, p10, p11, p12, p13, p14, p15;
+	}
+
+	static class SequenceValue extends SequencePadding {
+
+		protected volatile long value = 0;
+
+		public long get() {
+			return value;
+		}
+
+		public void set(long v) {
+			value = v;
+		}
+
+	}
+
+	static class SequencePadding {
+		protected long p1, p2, p3, p4, p5, p6, p7;
+	}
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+
+/**
+ * A receiver of the packets sent by a {@link RtpSocket}.
+ *
+ * Packets are built once by the packetizer and sent to every destination of the socket.
+ * Each destination sees its own RTP stream: packets are rewritten with its SSRC and with
+ * its sequence numbers (the sequence number of the socket plus an offset) and it gets
+ * its own RTCP Sender Reports.
+ *
+ * A destination can be paused and resumed with {@link RtpSocket#pause(RtpDestination)} and
+ * {@link RtpSocket#play(RtpDestination)}: its offset then changes so that the sequence numbers 
+ * it receives stay contiguous.
+ */
+public class RtpDestination {
+
+	// The destination receives the packets as they are sent
+	static final int LIVE = 0;
+	// The destination receives nothing until RtpSocket.play() is called
+	static final int HELD = 1;
+	// The cached group of pictures is being sent to the destination
+	static final int REPLAYING = 2;
+
+	private final InetSocketAddress mAddress;
+	private final SenderReport mReport;
+	private final int mSsrc;
+	private volatile int mSeqOffset;
+
+	volatile int mState = LIVE;
+
+	// Sequence number of the next packet sent to the destination
+	private volatile int mNextSeq;
+
+	// Set when the destination resumes, the offset is computed again with the next packet sent
+	private volatile boolean mResync = false;
+
+	// Sequence number and RTP timestamp of the first packet sent after the destination resumed
+	private volatile int mResumeSeq;
+	volatile long mResumeTimestamp = 0;
+
+	// Released when the first packet is sent after the destination resumed
+	private volatile CountDownLatch mResumed = new CountDownLatch(0);
+
+	// Set by the sender for the packet being sent, the destination receives it if true
+	boolean mSend = false;
+
+	RtpDestination(InetAddress dest, int rtpPort, int rtcpPort, int ssrc, int seqOffset, SenderReport report) {
+		mAddress = new InetSocketAddress(dest, rtpPort);
+		mSsrc = ssrc;
+		mSeqOffset = seqOffset;
+		mNextSeq = seqOffset;
+		mReport = report;
+		mReport.setSSRC(ssrc);
+		mReport.setDestination(dest, rtcpPort);
+	}
+
+	public InetSocketAddress getAddress() {
+		return mAddress;
+	}
+
+	/** Returns the SSRC used in the packets sent to this destination. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	/** Returns the Sender Report associated with this destination. */
+	public SenderReport getRtcpSocket() {
+		return mReport;
+	}
+
+	/**
+	 * Returns when the receiver last sent a RTCP report, {@link android.os.SystemClock#elapsedRealtime()}.
+	 * @return 0 if it never did, -1 if it left the session with a BYE
+	 */
+	public long getLastReportTime() {
+		long last = 0;
+		for (ReceptionReport report : mReport.getReceptionReports()) {
+			if (report.isBye()) return -1;
+			if (report.getTime()>last) last = report.getTime();
+		}
+		return last;
+	}
+
+	/**
+	 * Returns when a receiver at the given address last sent a RTCP report. The receivers of 
+	 * a multicast group all report to the same destination, this tells them apart.
+	 * @return 0 if it never did, -1 if it left the session with a BYE
+	 */
+	public long getLastReportTime(InetAddress address) {
+		long last = 0;
+		for (ReceptionReport report : mReport.getReceptionReports()) {
+			if (!address.equals(report.getAddress())) continue;
+			if (report.isBye()) return -1;
+			if (report.getTime()>last) last = report.getTime();
+		}
+		return last;
+	}
+
+	/** Converts a sequence number of the {@link RtpSocket} to a sequence number of this destination. */
+	public int toSequence(int seq) {
+		return (seq+mSeqOffset)&0xFFFF;
+	}
+
+	/** Converts a sequence number of this destination to a sequence number of the {@link RtpSocket}. */
+	public int fromSequence(int seq) {
+		return (seq-mSeqOffset)&0xFFFF;
+	}
+
+	/** Returns the sequence number of the first packet sent to this destination after it last resumed. */
+	public int getResumeSequence() {
+		return mResumeSeq;
+	}
+
+	/** 
+	 * Returns the RTP timestamp of the first packet sent to this destination after it last resumed. 
+	 * Until that packet is sent, see {@link #awaitResume(long)}, it is only an estimate.
+	 */
+	public long getResumeTimestamp() {
+		return mResumeTimestamp&0xFFFFFFFFL;
+	}
+
+	/**
+	 * Waits until the first packet is sent to this destination after it resumed.
+	 * @param timeout The maximum time to wait in milliseconds
+	 * @return False if no packet was sent before the timeout expired
+	 */
+	public boolean awaitResume(long timeout) throws InterruptedException {
+		return mResumed.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/** 
+	 * Called when the destination resumes, the next packet sent follows the last one it received.
+	 * @param timestamp Estimate of the RTP timestamp of the next packet
+	 */
+	void resume(long timestamp) {
+		mResumeSeq = mNextSeq;
+		mResumeTimestamp = timestamp;
+		mResumed = new CountDownLatch(1);
+		mResync = true;
+	}
+
+	/** 
+	 * Called by the sender before each packet sent live or replayed to this destination. 
+	 * The first packet after a resume gets the sequence number that follows the last one sent.
+	 * @param timestamp The RTP timestamp of the packet
+	 */
+	void next(int seq, long timestamp) {
+		if (mResync) {
+			mSeqOffset = (mNextSeq-seq)&0xFFFF;
+			mResumeTimestamp = timestamp;
+			mResync = false;
+			mResumed.countDown();
+		}
+		mNextSeq = (seq+mSeqOffset+1)&0xFFFF;
+	}
+
+	/** Writes the SSRC and the sequence number of this destination in the header of the packet. */
+	void rewrite(byte[] buffer, int seq) {
+		int s = toSequence(seq);
+		buffer[2] = (byte) (s>>8);
+		buffer[3] = (byte) s;
+		buffer[8] = (byte) (mSsrc>>24);
+		buffer[9] = (byte) (mSsrc>>16);
+		buffer[10] = (byte) (mSsrc>>8);
+		buffer[11] = (byte) mSsrc;
+	}
+
+}
@@ -22,11 +22,23 @@ package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import net.majorkernelpanic.streaming.rtcp.CongestionController;
+import net.majorkernelpanic.streaming.rtcp.ReceptionReport;
+import net.majorkernelpanic.streaming.rtcp.RtcpReceiver;
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 import android.os.SystemClock;
 import android.util.Log;
@@ -41,26 +53,94 @@ public class RtpSocket implements Runnable {
 	public static final String TAG = "RtpSocket";
 
 	public static final int RTP_HEADER_LENGTH = 12;
+
+	/** Default MTU of the path to the receivers, IP and UDP headers included. */
 	public static final int MTU = 1300;
 
+	/** Smallest MTU accepted by {@link #setMtu(int)}, every IPv4 host must accept 576 bytes datagrams. */
+	public static final int MIN_MTU = 576;
+
+	/** Largest MTU accepted by {@link #setMtu(int)}, the MTU of Ethernet and WiFi. */
+	public static final int MAX_MTU = 1500;
+
+	/** Length of the IPv4 and UDP headers. */
+	public static final int UDP_HEADER_LENGTH = 28;
+
+	/** Default rate of the replay of the cached group of pictures, in bit per second. */
+	public static final int DEFAULT_REPLAY_RATE = 8000000;
+
+	/** Largest rate of the replay accepted, in bit per second. */
+	public static final int MAX_REPLAY_RATE = 100000000;
+
+	/** The sender goes back to the {@link MediaExecutor} after sending packets for that long, in ns. */
+	public static final long MAX_RUN_TIME = 2000000;
+
+	/** By default the number of packets sent in a row is only bounded by {@link #MAX_RUN_TIME}. */
+	public static final int DEFAULT_BURST_SIZE = 0;
+
+	/** Number of packets kept after being sent, so that they can be retransmitted. Must be a power of 2. */
+	public static final int HISTORY_SIZE = 512;
+
+	/** Packets are sent with a {@link MulticastSocket}. */
+	public static final byte TRANSPORT_SOCKET = 0x01;
+
+	/** 
+	 * Packets are sent with a {@link DatagramChannel} from a direct buffer, which saves a copy 
+	 * of each packet. TTL is not supported with this transport.
+	 */
+	public static final byte TRANSPORT_CHANNEL = 0x02;
+
 	private MulticastSocket mSocket;
+	private DatagramChannel mChannel = null;
+	private ByteBuffer mDirectBuffer = null;
+	private byte mTransport = TRANSPORT_SOCKET;
+	private volatile int mBurstSize = DEFAULT_BURST_SIZE;
 	private DatagramPacket[] mPackets;
 	private byte[][] mBuffers;
 	private long[] mTimestamps;
+	private boolean[] mKeyFrames;
+	private boolean mKeyFrameNext = false;
 
 	private SenderReport mReport;
+
+	// Every receiver of the stream, indexed by SSRC. The primary destination uses mReport.
+	private final ConcurrentHashMap<Integer,RtpDestination> mDestinations = new ConcurrentHashMap<Integer,RtpDestination>();
+	private RtpDestination mPrimary = null;
+
+	// Copy of the last packets sent, indexed by sequence number
+	private final byte[][] mHistory = new byte[HISTORY_SIZE][];
+	private final int[] mHistorySeq = new int[HISTORY_SIZE];
+	private final int[] mHistoryLength = new int[HISTORY_SIZE];
+	private boolean mRetransmission = true;
+
+	private UlpfecEncoder mFec = null;
+
+	// Group of pictures sent to the viewers that join the stream
+	private volatile GopCache mGop = new GopCache(GopCache.DEFAULT_MAX_SIZE);
+	private int mReplayRate = DEFAULT_REPLAY_RATE;
+
+	private volatile CongestionController mController = null;
+	private volatile KeyFrameListener mKeyFrameListener = null;
+	private volatile long mNewestTimestamp = 0, mQueueDelay = 0;
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
-	private Thread mThread;
+	private PacketRing mRing;
+
+	// The sender runs on the MediaExecutor, it is scheduled when mScheduled is set
+	private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+	private volatile boolean mActive = false, mIdleCheck = false;
+	private volatile long mLastSent = 0;
+	private long mDeadline = 0, mDelta = 0;
 
 	private long mCacheSize;
 	private long mClock = 0;
 	private long mOldTimestamp = 0;
 	private int mSsrc, mSeq = 0, mPort = -1;
+	private int mMtu = MTU;
 	private int mBufferCount, mBufferIn, mBufferOut;
 	private int mCount = 0;
 	
 	private AverageBitrate mAverageBitrate;
+	private TokenBucket mPacer;
 
 	/**
 	 * RTP socketʵֻFIFOһ̡߳
@@ -72,14 +152,33 @@ public class RtpSocket implements Runnable {
 		mBufferCount = 300; // TODO: Ӧ,FIFOѾ
 		mBuffers = new byte[mBufferCount][];
 		mPackets = new DatagramPacket[mBufferCount];
+		mTimestamps = new long[mBufferCount];
+		mKeyFrames = new boolean[mBufferCount];
+		mRing = new PacketRing(mBufferCount);
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
+		mPacer = new TokenBucket();
+		
+		allocate(MTU);
+
+		try {
+		mSocket = new MulticastSocket();
+		} catch (Exception e) {
+			throw new RuntimeException(e.getMessage());
+		}
 		
-		resetFifo(); 
+	}
 
+	/** 
+	 * Allocates the buffers of the FIFO and of the history. Packets, FEC packets included, 
+	 * are never larger than the MTU minus the IP and UDP headers, see {@link #getMaxPacketSize()}.
+	 */
+	private void allocate(int mtu) {
+		mMtu = mtu;
+		mPacer.setMtu(mtu);
 		for (int i=0; i<mBufferCount; i++) {
 
-			mBuffers[i] = new byte[MTU];
+			mBuffers[i] = new byte[mtu];
 			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
 
 			/*							     Version(2)  Padding(0)					 					*/
@@ -97,31 +196,159 @@ public class RtpSocket implements Runnable {
 			/* Byte 2,3        ->  Sequence Number                   */
 			/* Byte 4,5,6,7    ->  Timestamp                         */
 			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+			setLong(mBuffers[i], mSsrc, 8, 12);
 
 		}
+		synchronized (mHistory) {
+			for (int i=0;i<HISTORY_SIZE;i++) {
+				mHistory[i] = new byte[mtu];
+				mHistorySeq[i] = -1;
+			}
+		}
+		if (mChannel != null) mDirectBuffer = ByteBuffer.allocateDirect(mtu);
+	}
 
+	/**
+	 * Sets the MTU of the path to the receivers, IP and UDP headers included, and 
+	 * resizes the buffers of the FIFO accordingly. Must be called before streaming starts.
+	 * @param mtu The MTU, between {@link #MIN_MTU} and {@link #MAX_MTU}
+	 * @throws IllegalStateException If the socket is already sending packets
+	 */
+	public void setMtu(int mtu) {
+		if (mtu<MIN_MTU || mtu>MAX_MTU) throw new IllegalArgumentException("The MTU must be between "+MIN_MTU+" and "+MAX_MTU+" !");
+		if (mtu == mMtu) return;
+		if (mActive) throw new IllegalStateException("The MTU can't be changed while streaming !");
+		allocate(mtu);
+	}
+
+	public int getMtu() {
+		return mMtu;
+	}
+
+	/** 
+	 * Returns the maximum length of the RTP packets, header included. When FEC is enabled, 
+	 * it leaves room for the FEC header: a FEC packet carries the payload of the largest 
+	 * packet of its group after its own headers.
+	 */
+	public int getMaxPacketSize() {
+		return mMtu-UDP_HEADER_LENGTH-(mFec != null ? UlpfecEncoder.HEADER_LENGTH : 0);
+	}
+
+	/**
+	 * Finds the MTU of the path to a destination. Java can't set the DF bit of UDP packets,
+	 * so the MTU of the local interface that leads to the destination is used. It is only 
+	 * trusted for destinations on the local network, for the others it is capped to {@link #MTU}.
+	 * @param destination The address of the receiver
+	 * @return The MTU, {@link #MTU} if the interface can't be found
+	 */
+	public static int probeMtu(InetAddress destination) {
+		DatagramSocket socket = null;
 		try {
-		mSocket = new MulticastSocket();
-		} catch (Exception e) {
-			throw new RuntimeException(e.getMessage());
+			// Connecting an UDP socket sends nothing but selects the route to the destination
+			socket = new DatagramSocket();
+			socket.connect(destination, 9);
+			NetworkInterface iface = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+			if (iface == null) return MTU;
+			int mtu = iface.getMTU();
+			if (mtu<MIN_MTU) return MTU;
+			boolean local = destination.isLoopbackAddress() || destination.isSiteLocalAddress() || 
+					destination.isLinkLocalAddress() || destination.isMulticastAddress();
+			mtu = Math.min(mtu, local ? MAX_MTU : MTU);
+			Log.d(TAG, "MTU to "+destination.getHostAddress()+": "+mtu+" ("+iface.getName()+")");
+			return mtu;
+		} catch (IOException e) {
+			Log.e(TAG, "MTU probing failed: "+e.getMessage());
+			return MTU;
+		} finally {
+			if (socket != null) socket.close();
 		}
-		
 	}
 
+	/** 
+	 * Called by the sender when the stream stops. The packetizer may still be committing a 
+	 * packet, so the FIFO is drained rather than reset and the FEC group is left to the packetizer.
+	 */
 	private void resetFifo() {
 		mCount = 0;
-		mBufferIn = 0;
-		mBufferOut = 0;
-		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
+		try {
+			while ((mBufferOut = mRing.poll(0))>=0) mRing.release();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		mReport.reset();
+		for (RtpDestination destination : mDestinations.values()) {
+			destination.getRtcpSocket().reset();
+		}
 		mAverageBitrate.reset();
+		mPacer.reset();
+		mDeadline = 0;
+		GopCache gop = mGop;
+		if (gop != null) {
+			synchronized (gop) {
+				gop.reset();
+			}
+		}
+		synchronized (mHistory) {
+			for (int i=0;i<HISTORY_SIZE;i++) mHistorySeq[i] = -1;
+		}
 	}
 	
 	/** رյײsocket */
 	public void close() {
+		for (RtpDestination destination : mDestinations.values()) {
+			if (destination != mPrimary) destination.getRtcpSocket().close();
+		}
+		mDestinations.clear();
 		mSocket.close();
+		if (mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+	/**
+	 * Selects the API used to send packets over the network. 
+	 * Must be called before streaming starts because the local port may change.
+	 * @param transport Can be {@link #TRANSPORT_SOCKET} or {@link #TRANSPORT_CHANNEL}
+	 * @throws IOException If the channel could not be opened
+	 */
+	public void setTransport(byte transport) throws IOException {
+		if (transport == TRANSPORT_CHANNEL && mChannel == null) {
+			mChannel = DatagramChannel.open();
+			mChannel.socket().bind(null);
+			mDirectBuffer = ByteBuffer.allocateDirect(mMtu);
+		}
+		mTransport = transport;
+	}
+
+	/** 
+	 * Sets the maximum number of packets sent in a row before the sender gives the thread back 
+	 * to the other tracks. With a large value, all the FU-A fragments of a H.264 frame leave in one go,
+	 * with a small one the tracks sharing the {@link MediaExecutor} are interleaved more finely.
+	 * @param burstSize The number of packets, 0 to only bound the bursts by {@link #MAX_RUN_TIME}
+	 */
+	public void setBurstSize(int burstSize) {
+		if (burstSize<0) throw new IllegalArgumentException("The burst size must be positive !");
+		mBurstSize = burstSize;
+	}
+
+	public int getBurstSize() {
+		return mBurstSize;
+	}
+
+	/**
+	 * Sets how the packetizer waits for the sender when the FIFO is full. The sender never waits
+	 * on the FIFO, it goes back to the {@link MediaExecutor} when there is nothing to send.
+	 * @param strategy {@link PacketRing.WaitStrategy#DEFAULT} spins before parking, which hands the
+	 * packets over faster, {@link PacketRing.WaitStrategy#PARK} saves CPU time
+	 */
+	public void setWaitStrategy(PacketRing.WaitStrategy strategy) {
+		mRing.setWaitStrategy(strategy);
+	}
+
+	public PacketRing.WaitStrategy getWaitStrategy() {
+		return mRing.getWaitStrategy();
 	}
 
 	/** SSRCʶRTPϢԴµϢʼʱԴһ룩 */
@@ -131,6 +358,10 @@ public class RtpSocket implements Runnable {
 			setLong(mBuffers[i], ssrc,8,12);
 		}
 		mReport.setSSRC(mSsrc);
+		if (mPrimary != null) {
+			InetSocketAddress address = mPrimary.getAddress();
+			setDestination(address.getAddress(), address.getPort(), mReport.getPort());
+		}
 	}
 
 	/** SSRC */
@@ -143,11 +374,15 @@ public class RtpSocket implements Runnable {
 		mClock = clock;
 	}
 
+	public long getClockFrequency() {
+		return mClock;
+	}
+
 	/** FIFOĴС ms. */
 	public void setCacheSize(long cacheSize) {
 		mCacheSize = cacheSize;
 	}
-	
+
 	/** UDPݰĴʱ */
 	public void setTimeToLive(int ttl) throws IOException {
 		mSocket.setTimeToLive(ttl);
@@ -156,11 +391,175 @@ public class RtpSocket implements Runnable {
 	/** Ŀĵַ,ݰ͡*/
 	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		mPort = dport;
-		for (int i=0;i<mBufferCount;i++) {
-			mPackets[i].setPort(dport);
-			mPackets[i].setAddress(dest);
+		RtpDestination primary = new RtpDestination(dest, dport, rtcpPort, mSsrc, 0, mReport);
+		if (mPrimary != null) mDestinations.remove(mPrimary.getSSRC());
+		mDestinations.put(mSsrc, primary);
+		mPrimary = primary;
+		if (mActive) listen(primary);
+	}
+
+	/**
+	 * Adds a receiver to the stream, packets will be sent to it as well as to the 
+	 * destination set with {@link #setDestination(InetAddress, int, int)}.
+	 * The receiver gets its own SSRC, its own sequence numbers and its own RTCP Sender Reports.
+	 * Can be called while streaming.
+	 * @param dest The address of the receiver
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 * @return The new destination, needed to remove it with {@link #removeDestination(RtpDestination)}
+	 */
+	public RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort) {
+		return addDestination(dest, rtpPort, rtcpPort, false);
+	}
+
+	/**
+	 * Adds a receiver to the stream.
+	 * @param held True if the receiver must receive nothing until {@link #play(RtpDestination)} is called
+	 * @see #addDestination(InetAddress, int, int)
+	 */
+	public RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort, boolean held) {
+		Random random = new Random();
+		while (true) {
+			int ssrc = random.nextInt();
+			if (mDestinations.containsKey(ssrc)) continue;
+			RtpDestination destination = new RtpDestination(dest, rtpPort, rtcpPort, ssrc, random.nextInt(65536), new SenderReport());
+			if (held) destination.mState = RtpDestination.HELD;
+			if (mDestinations.putIfAbsent(ssrc, destination) == null) {
+				if (mActive) listen(destination);
+				return destination;
+			}
+			destination.getRtcpSocket().close();
+		}
+	}
+
+	/** Stops sending packets to a receiver added with {@link #addDestination(InetAddress, int, int)}. */
+	public void removeDestination(RtpDestination destination) {
+		// Stops the replay of the cached group of pictures
+		destination.mState = RtpDestination.HELD;
+		if (mDestinations.remove(destination.getSSRC(), destination)) {
+			if (destination == mPrimary) {
+				mPrimary = null;
+				mReport.setListener(null);
+			} else {
+				destination.getRtcpSocket().close();
+			}
 		}
-		mReport.setDestination(dest, rtcpPort);
+	}
+
+	/**
+	 * Starts sending the stream to a destination added in the held state. If a group of pictures
+	 * is cached, it is sent first, faster than real time but paced at {@link #setReplayRate(int)},
+	 * then the destination switches to the packets as they are sent. The destination sees a single
+	 * stream: the sequence numbers of the replay and of the live packets follow each other, and the
+	 * timestamps of the replayed frames are squeezed so that it quickly catches up with the live ones.
+	 * {@link RtpDestination#awaitResume(long)} returns once the first packet has been sent.
+	 * @return True if the cached group of pictures is replayed
+	 */
+	public boolean play(RtpDestination destination) {
+		GopCache gop = mGop;
+		if (destination.mState != RtpDestination.HELD) return false;
+		// The sequence numbers of the destination continue from the last packet it received
+		destination.resume(toRtpTimestamp(mNewestTimestamp));
+		if (gop == null || !mDestinations.containsKey(destination.getSSRC())) {
+			destination.mState = RtpDestination.LIVE;
+			return false;
+		}
+		Replay replay;
+		synchronized (gop) {
+			if (!gop.lookup()) {
+				destination.mState = RtpDestination.LIVE;
+				return false;
+			}
+			destination.mState = RtpDestination.REPLAYING;
+			replay = new Replay(gop, destination);
+			destination.mResumeTimestamp = toRtpTimestamp(replay.getStart());
+		}
+		MediaExecutor.getInstance().execute(replay);
+		return true;
+	}
+
+	/**
+	 * Stops sending packets to a destination without removing it, {@link #play(RtpDestination)} resumes.
+	 * The packetizer and the encoder keep running, so the destination resumes with the next packet
+	 * (or with the cached group of pictures) and its RTCP reports still keep it alive.
+	 */
+	public void pause(RtpDestination destination) {
+		// Also stops the replay of the cached group of pictures
+		destination.mState = RtpDestination.HELD;
+	}
+
+	/**
+	 * Sets the cap of the cache of the group of pictures replayed to the viewers that join the stream.
+	 * Only the packetizers that mark the key frames with {@link #markKeyFrame()} fill the cache.
+	 * Must be called before streaming starts.
+	 * @param size The cap in bytes, 0 to disable the cache, at most {@link GopCache#MAX_SIZE}
+	 */
+	public void setGopCacheSize(int size) {
+		if (size<0 || size>GopCache.MAX_SIZE) throw new IllegalArgumentException("The size of the cache must be between 0 and "+GopCache.MAX_SIZE+" !");
+		GopCache gop = mGop;
+		if (gop != null && gop.getMaxSize() == size) return;
+		mGop = size>0 ? new GopCache(size) : null;
+	}
+
+	/** Returns the cache of the group of pictures, with its metrics, null if it is disabled. */
+	public GopCache getGopCache() {
+		return mGop;
+	}
+
+	/** 
+	 * Sets the rate of the replay of the cached group of pictures, it should stay below the
+	 * capacity of the link to the viewers.
+	 * @param bitrate The rate in bit per second, at most {@link #MAX_REPLAY_RATE}
+	 */
+	public void setReplayRate(int bitrate) {
+		if (bitrate<=0 || bitrate>MAX_REPLAY_RATE) throw new IllegalArgumentException("The rate must be between 1 and "+MAX_REPLAY_RATE+" !");
+		mReplayRate = bitrate;
+	}
+
+	/** Returns the number of receivers of the stream, including the primary destination. */
+	public int getDestinationCount() {
+		return mDestinations.size();
+	}
+
+	/** Returns the destination set with {@link #setDestination(InetAddress, int, int)}, null if it was removed. */
+	public RtpDestination getPrimaryDestination() {
+		return mPrimary;
+	}
+
+	/**
+	 * Enables or disables the retransmission of the packets reported lost by the receivers 
+	 * with Generic NACKs (RFC 4585). Lost packets are sent again as they were, with the same
+	 * sequence number, as long as they are still in the history. Enabled by default.
+	 */
+	public void setRetransmission(boolean enabled) {
+		mRetransmission = enabled;
+	}
+
+	/** 
+	 * The reports of the receivers will be passed to the controller. 
+	 * @param controller The controller, null to stop the congestion control
+	 */
+	public void setCongestionController(CongestionController controller) {
+		mController = controller;
+	}
+
+	/** Called from the thread reading the RTCP feedback of a destination. */
+	public interface KeyFrameListener {
+		/** Called when a receiver asks for a key frame with a RTCP PLI or FIR. */
+		void onKeyFrameRequest();
+	}
+
+	/**
+	 * Sets the listener called when a receiver asks for a key frame.
+	 * @param listener The listener, null to ignore the requests
+	 */
+	public void setKeyFrameListener(KeyFrameListener listener) {
+		mKeyFrameListener = listener;
+	}
+
+	/** Returns how long the last packet sent waited in the FIFO, in milliseconds of media time. */
+	public long getQueueDelay() {
+		return mQueueDelay/1000000;
 	}
 
 	public int getPort() {
@@ -168,12 +567,21 @@ public class RtpSocket implements Runnable {
 	}
 
 	public int getLocalPort() {
-		return mSocket.getLocalPort();
+		return mTransport == TRANSPORT_CHANNEL ? mChannel.socket().getLocalPort() : mSocket.getLocalPort();
 	}
 
 	public SenderReport getRtcpSocket() {
 		return mReport;
 	}
+
+	/** Returns the last RTCP report of each receiver, for all destinations. */
+	public List<ReceptionReport> getReceptionReports() {
+		List<ReceptionReport> reports = new ArrayList<ReceptionReport>();
+		for (RtpDestination destination : mDestinations.values()) {
+			reports.addAll(destination.getRtcpSocket().getReceptionReports());
+		}
+		return reports;
+	}
 	
 	/** 
 	 * FIFOһЧݣԱ޸ 
@@ -181,21 +589,19 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
-		mBuffers[mBufferIn][1] &= 0x7F;
+		mBufferIn = mRing.claim();
+		// Clears the marker and the payload type of a FEC packet
+		mBuffers[mBufferIn][1] = (byte) 96;
+		mKeyFrames[mBufferIn] = mKeyFrameNext;
+		mKeyFrameNext = false;
 		return mBuffers[mBufferIn];
 	}
 
 	/** ѻFIFO޷ݰ*/
 	public void commitBuffer() throws IOException {
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}
-		
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		mRing.publish();
+		wake();
 
 	}	
 	
@@ -205,15 +611,76 @@ public class RtpSocket implements Runnable {
 		mPackets[mBufferIn].setLength(length);
 
 		mAverageBitrate.push(length);
+		mNewestTimestamp = mTimestamps[mBufferIn];
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		// The parity is computed before the sender thread gets the packet
+		UlpfecEncoder fec = mFec;
+		// A new stream starts a new group
+		if (fec != null && !mActive) fec.reset();
+		boolean parity = fec != null && fec.protect(mBuffers[mBufferIn], length);
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}		
+		mRing.publish();
+		wake();
 		
+		if (parity) commitFec(fec);
+		
+	}
+
+	/**
+	 * Enables the FEC stage: a ULPFEC packet (RFC 5109) with the XOR parity of the 
+	 * last packets is sent after every group of packets.
+	 * Must be called before {@link #getMaxPacketSize()} is used to split the packets.
+	 * @param overhead Ratio between the FEC packets and the media packets, 0 to disable FEC
+	 */
+	public void setFecOverhead(double overhead) {
+		if (overhead<=0) {
+			mFec = null;
+		} else if (mFec == null) {
+			mFec = new UlpfecEncoder(overhead);
+		} else {
+			mFec.setOverhead(overhead);
+		}
+	}
+
+	/** Sends the FEC packet of the group that was just completed, with the timestamp of its last packet. */
+	private void commitFec(UlpfecEncoder fec) {
+		int media = mBufferIn;
+		try {
+			mBufferIn = mRing.claim();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fec.reset();
+			return;
+		}
+		byte[] buffer = mBuffers[mBufferIn];
+		buffer[1] = (byte) UlpfecEncoder.PAYLOAD_TYPE;
+		mKeyFrames[mBufferIn] = false;
+		System.arraycopy(mBuffers[media], 4, buffer, 4, 4);
+		mTimestamps[mBufferIn] = mTimestamps[media];
+		updateSequence();
+		int length = fec.build(buffer);
+		mPackets[mBufferIn].setLength(length);
+		mAverageBitrate.push(length);
+		mRing.publish();
+		wake();
+	}
+
+	/** Returns the sequence number base of a FEC packet, -1 if the packet is not a FEC packet. */
+	private static int getFecBase(byte[] buffer) {
+		if ((buffer[1]&0x7F) != UlpfecEncoder.PAYLOAD_TYPE) return -1;
+		int o = RTP_HEADER_LENGTH+2;
+		return ((buffer[o]&0xFF)<<8) | (buffer[o+1]&0xFF);
+	}
+
+	/** Converts a timestamp in nanoseconds to a RTP timestamp. */
+	private long toRtpTimestamp(long timestamp) {
+		return (timestamp/100L)*(mClock/1000L)/10000L;
+	}
+
+	/** Writes the SSRC and the sequence numbers of a destination in a packet. */
+	private void rewrite(RtpDestination destination, byte[] buffer, int seq, int base) {
+		destination.rewrite(buffer, seq);
+		if (base>=0) setLong(buffer, destination.toSequence(base), RTP_HEADER_LENGTH+2, RTP_HEADER_LENGTH+4);
 	}
 
 	/** һƵRTPı
@@ -233,7 +700,7 @@ public class RtpSocket implements Runnable {
 	 **/
 	public void updateTimestamp(long timestamp) {
 		mTimestamps[mBufferIn] = timestamp;
-		setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+		setLong(mBuffers[mBufferIn], toRtpTimestamp(timestamp), 4, 8);
 	}
 
 	/** RTPݰıǡ */
@@ -241,43 +708,333 @@ public class RtpSocket implements Runnable {
 		mBuffers[mBufferIn][1] |= 0x80;
 	}
 
-	/**߳ȽȳһһԺ㶨ʷݰ  */
+	/** 
+	 * The next buffer requested with {@link #requestBuffer()} is the first packet of a key frame,
+	 * a new group of pictures starts in the cache.
+	 */
+	public void markKeyFrame() {
+		mKeyFrameNext = true;
+	}
+
+	/** Schedules the sender on the {@link MediaExecutor} when a packet has been committed. */
+	private void wake() {
+		if (mScheduled.compareAndSet(false, true)) {
+			if (!mActive) {
+				mActive = true;
+				mLastSent = System.nanoTime();
+				for (RtpDestination destination : mDestinations.values()) {
+					listen(destination);
+				}
+				// The FIFO is filled during mCacheSize ms before the first packet is sent
+				MediaExecutor.getInstance().schedule(this, TimeUnit.MILLISECONDS.toNanos(mCacheSize));
+			} else {
+				MediaExecutor.getInstance().execute(this);
+			}
+		}
+	}
+
+	/** 
+	 * Sends the packets committed by the packetizer, in order. Runs on the {@link MediaExecutor}
+	 * and never blocks: when the FIFO is empty or when the token bucket holds the next packet,
+	 * the thread goes back to the executor until there is something to send. Otherwise the FIFO
+	 * is drained for at most {@link #MAX_RUN_TIME} and {@link #setBurstSize(int)} packets before 
+	 * the other tracks get the thread.
+	 */
 	@Override
 	public void run() {
-		Statistics stats = new Statistics(50,3000);
 		try {
-			// FIFOmCacheSize롣
-			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
+			final long start = System.nanoTime();
+			final int burst = mBurstSize;
+			int sent = 0;
+			while (true) {
+				if ((mBufferOut = mRing.poll(0))<0) {
+					// The packetizer may have committed a packet since the FIFO was found empty
+					mScheduled.set(false);
+					if (mRing.size()>0 && mScheduled.compareAndSet(false, true)) continue;
+					checkIdle();
+					return;
+				}
+				if (mCacheSize>0) {
+					// The token bucket makes sure that packets leave at the rate of the stream
+					long delay = pace(mPackets[mBufferOut].getLength(), mTimestamps[mBufferOut]);
+					if (delay>0) {
+						MediaExecutor.getInstance().schedule(this, delay);
+						return;
+					}
+				}
 				if (mOldTimestamp != 0) {
-					// ʹǵʱƵʺʱ֮Ĳʱš
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						//RtpSocketʹõȷٶȺ㶨ƥݰ
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
+					if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
 						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
 					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
+					mDelta += mTimestamps[mBufferOut]-mOldTimestamp;
+					if (mDelta>500000000 || mDelta<0) {
+						Log.d(TAG,"pending: "+mRing.size());
+						mDelta = 0;
 					}
 				}
-				mReport.update(mPackets[mBufferOut].getLength(), System.nanoTime(),(mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
 				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) mSocket.send(mPackets[mBufferOut]);
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
+				fanOut(mBufferOut, mCount++>30);
+				mQueueDelay = mNewestTimestamp-mOldTimestamp;
+				mLastSent = System.nanoTime();
+				mRing.release();
+				// Lets the other tracks use the thread
+				if (mLastSent-start>=MAX_RUN_TIME || ++sent == burst) {
+					MediaExecutor.getInstance().execute(this);
+					return;
+				}
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
+			stopSending();
+			mScheduled.set(false);
+		}
+	}
+
+	/** The stream is considered stopped when nothing was committed for 4 seconds. */
+	private void checkIdle() {
+		if (mIdleCheck || !mActive) return;
+		mIdleCheck = true;
+		MediaExecutor.getInstance().schedule(new Runnable() {
+			@Override
+			public void run() {
+				mIdleCheck = false;
+				long idle = System.nanoTime()-mLastSent;
+				if (idle<TimeUnit.SECONDS.toNanos(4)) {
+					checkIdle();
+				} else if (mRing.size() == 0 && mScheduled.compareAndSet(false, true)) {
+					stopSending();
+					mScheduled.set(false);
+					if (mRing.size()>0) wake();
+				}
+			}
+		}, Math.max(0, mLastSent+TimeUnit.SECONDS.toNanos(4)-System.nanoTime()));
+	}
+
+	private void stopSending() {
+		for (RtpDestination destination : mDestinations.values()) {
+			destination.getRtcpSocket().setListener(null);
 		}
-		mThread = null;
 		resetFifo();
+		mActive = false;
+	}
+
+	/** Starts reading the RTCP feedback sent by a receiver. */
+	private void listen(final RtpDestination destination) {
+		destination.getRtcpSocket().setListener(new RtcpReceiver.Listener() {
+			@Override
+			public void onNack(int ssrc, int[] sequences) {
+				if (ssrc == destination.getSSRC() && mRetransmission) {
+					try {
+						retransmit(destination, sequences);
+					} catch (IOException e) {
+						Log.e(TAG, "Retransmission failed: "+e.getMessage());
+					}
+				}
+			}
+			@Override
+			public void onReceptionReport(ReceptionReport report) {
+				CongestionController controller = mController;
+				if (controller != null) controller.onReceptionReport(report, getBitrate(), getQueueDelay());
+			}
+			@Override
+			public void onKeyFrameRequest(int ssrc) {
+				KeyFrameListener listener = mKeyFrameListener;
+				if (listener != null && ssrc == destination.getSSRC()) listener.onKeyFrameRequest();
+			}
+		});
+	}
+
+	/** 
+	 * Sends again the packets found in the history. Called by the thread reading 
+	 * the RTCP feedback, so it uses its own buffer and packet.
+	 * @param sequences Sequence numbers as seen by the destination
+	 */
+	private void retransmit(RtpDestination destination, int[] sequences) throws IOException {
+		byte[] buffer = new byte[mMtu];
+		DatagramPacket packet = new DatagramPacket(buffer, 1, destination.getAddress());
+		for (int i=0;i<sequences.length;i++) {
+			int seq = destination.fromSequence(sequences[i]);
+			int slot = seq&(HISTORY_SIZE-1), length;
+			synchronized (mHistory) {
+				if (mHistorySeq[slot] != seq) continue;
+				length = mHistoryLength[slot];
+				System.arraycopy(mHistory[slot], 0, buffer, 0, length);
+			}
+			rewrite(destination, buffer, seq, getFecBase(buffer));
+			if (mTransport == TRANSPORT_CHANNEL) {
+				mChannel.send(ByteBuffer.wrap(buffer, 0, length), destination.getAddress());
+			} else {
+				packet.setLength(length);
+				mSocket.send(packet);
+			}
+		}
+	}
+
+	/** 
+	 * Returns how long the packet must wait before the token bucket lets it go. Used instead 
+	 * of sleeping a fixed time between packets when the FIFO is used as a cache.
+	 * The tokens are only taken once, the first time the packet is paced.
+	 */
+	private long pace(int length, long timestamp) {
+		long now = System.nanoTime();
+		if (mDeadline == 0) {
+			long delay = mPacer.reserve(length, timestamp, now);
+			if (delay<=0) return 0;
+			mDeadline = now+delay;
+		}
+		long delay = mDeadline-now;
+		if (delay<=0) mDeadline = 0;
+		return delay>0 ? delay : 0;
+	}
+
+	/** 
+	 * Sends the packet stored in the given slot of the FIFO to every destination.
+	 * The header is rewritten in place for each destination and restored afterwards.
+	 */
+	private void fanOut(int slot, boolean send) throws IOException {
+		byte[] buffer = mBuffers[slot];
+		int length = mPackets[slot].getLength();
+		int seq = ((buffer[2]&0xFF)<<8) | (buffer[3]&0xFF);
+		int base = getFecBase(buffer);
+		long rtpts = toRtpTimestamp(mTimestamps[slot]);
+		long now = System.nanoTime();
+		GopCache gop = mGop;
+		if (gop != null) {
+			// A replay switches to the live packets with the lock held, so the packet is sent exactly once
+			synchronized (gop) {
+				gop.add(buffer, length, mTimestamps[slot], mKeyFrames[slot]);
+				for (RtpDestination destination : mDestinations.values()) {
+					destination.mSend = destination.mState == RtpDestination.LIVE;
+				}
+			}
+		} else {
+			for (RtpDestination destination : mDestinations.values()) {
+				destination.mSend = destination.mState == RtpDestination.LIVE;
+			}
+		}
+		for (RtpDestination destination : mDestinations.values()) {
+			if (!destination.mSend) continue;
+			destination.getRtcpSocket().update(length, now, rtpts);
+			if (send) {
+				destination.next(seq, rtpts);
+				rewrite(destination, buffer, seq, base);
+				send(slot, destination.getAddress());
+			}
+		}
+		if (send) {
+			setLong(buffer, seq, 2, 4);
+			setLong(buffer, mSsrc, 8, 12);
+			if (base>=0) setLong(buffer, base, RTP_HEADER_LENGTH+2, RTP_HEADER_LENGTH+4);
+			if (mRetransmission) {
+				int i = seq&(HISTORY_SIZE-1);
+				synchronized (mHistory) {
+					System.arraycopy(buffer, 0, mHistory[i], 0, length);
+					mHistoryLength[i] = length;
+					mHistorySeq[i] = seq;
+				}
+			}
+		}
+	}
+
+	/** Sends the packet stored in the given slot of the FIFO. */
+	private void send(int slot, InetSocketAddress address) throws IOException {
+		if (mTransport == TRANSPORT_CHANNEL) {
+			mDirectBuffer.clear();
+			mDirectBuffer.put(mBuffers[slot], 0, mPackets[slot].getLength());
+			mDirectBuffer.flip();
+			mChannel.send(mDirectBuffer, address);
+		} else {
+			mPackets[slot].setSocketAddress(address);
+			mSocket.send(mPackets[slot]);
+		}
+	}
+
+	/** 
+	 * Sends the cached group of pictures to a destination, then lets the sender send it the 
+	 * live packets. Runs on the {@link MediaExecutor} and gives the thread back while pacing.
+	 */
+	private class Replay implements Runnable {
+
+		// The replayed frames are played that much faster than real time
+		private static final int SPEEDUP = 8;
+
+		// The replay may be ahead of its rate by that much, in nanoseconds
+		private static final long BURST = 2000000;
+
+		private final GopCache mCache;
+		private final RtpDestination mDestination;
+		private final byte[] mBuffer = new byte[MAX_MTU];
+		private final DatagramPacket mPacket;
+		private final long mEnd;
+		private int mGeneration, mIndex = 0;
+		private long mFree = 0;
+
+		// Called with the lock of the cache held
+		Replay(GopCache cache, RtpDestination destination) {
+			mCache = cache;
+			mDestination = destination;
+			mPacket = new DatagramPacket(mBuffer, 1, destination.getAddress());
+			mGeneration = cache.getGeneration();
+			mEnd = cache.getTimestamp(cache.getPacketCount()-1);
+		}
+
+		/** Returns the timestamp of the first replayed packet, in nanoseconds. Called with the lock of the cache held. */
+		long getStart() {
+			return squeeze(mCache.getTimestamp(0));
+		}
+
+		private long squeeze(long timestamp) {
+			return timestamp<mEnd ? mEnd-(mEnd-timestamp)/SPEEDUP : timestamp;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					int length;
+					long timestamp;
+					synchronized (mCache) {
+						if (mDestination.mState != RtpDestination.REPLAYING) return;
+						if (mCache.getGeneration() != mGeneration) {
+							// A new group started, the rest of the previous one is skipped
+							mGeneration = mCache.getGeneration();
+							mIndex = 0;
+						}
+						if (mIndex>=mCache.getPacketCount()) {
+							mDestination.mState = RtpDestination.LIVE;
+							return;
+						}
+						length = mCache.get(mIndex, mBuffer);
+						timestamp = mCache.getTimestamp(mIndex);
+						mIndex++;
+					}
+					long rtpts = toRtpTimestamp(squeeze(timestamp));
+					setLong(mBuffer, rtpts, 4, 8);
+					int seq = ((mBuffer[2]&0xFF)<<8) | (mBuffer[3]&0xFF);
+					mDestination.next(seq, rtpts);
+					rewrite(mDestination, mBuffer, seq, getFecBase(mBuffer));
+					long now = System.nanoTime();
+					mDestination.getRtcpSocket().update(length, now, rtpts);
+					if (mTransport == TRANSPORT_CHANNEL) {
+						mChannel.send(ByteBuffer.wrap(mBuffer, 0, length), mDestination.getAddress());
+					} else {
+						mPacket.setLength(length);
+						mSocket.send(mPacket);
+					}
+					mFree = Math.max(mFree, now)+length*8000000000L/mReplayRate;
+					if (mFree-now>BURST) {
+						MediaExecutor.getInstance().schedule(this, mFree-now-BURST);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Replay failed: "+e.getMessage());
+				synchronized (mCache) {
+					if (mDestination.mState == RtpDestination.REPLAYING) mDestination.mState = RtpDestination.LIVE;
+				}
+			}
+		}
+
 	}
 
 	private void setLong(byte[] buffer, long n, int begin, int end) {
@@ -349,54 +1106,5 @@ public class RtpSocket implements Runnable {
 		}
 		
 	}
-	
-	/** ȷݰʡ */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
-		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// ǺԵһ40ֵ,Ϊǿܲ׼ȷ
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
-		}
-
-	}
 
 }
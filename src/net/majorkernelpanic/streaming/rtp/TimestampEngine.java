@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Recovers the capture clock of a stream whose frames come without timestamps,
+ * like the stream of the MediaRecorder API read from a LocalSocket.
+ * 
+ * The frames are captured at a constant rate but arrive in bursts. A line is fitted
+ * with least squares to the arrival times of the last frames against their index, 
+ * and the timestamp of a frame is the value of the line at its index: the slope follows
+ * the actual frame rate of the camera and the jitter of the arrivals is averaged out.
+ * A gap of more than two periods means that frames were dropped and skips some indexes.
+ * The timestamps produced are monotonic. All durations are in nanoseconds.
+ */
+public class TimestampEngine {
+
+	/** Number of frames used for the fit. */
+	private final static int WINDOW = 64;
+
+	/** Below this number of frames, the nominal period is used instead of the fitted slope. */
+	private final static int MIN_FRAMES = 8;
+
+	private final long[] mArrivals = new long[WINDOW];
+	private final long[] mIndexes = new long[WINDOW];
+	private double mNominal = 0;
+	private double mSlope = 0, mIntercept = 0;
+	private long mIndex = 0, mFirst = 0;
+	private double mLast = 0;
+	private int mCount = 0;
+
+	public TimestampEngine() {}
+
+	/**
+	 * Sets the nominal frame rate of the stream. The fitted period 
+	 * stays between half and twice the nominal period.
+	 * @param framerate The frame rate, 0 if unknown
+	 */
+	public void setFrameRate(double framerate) {
+		mNominal = framerate>0 ? 1000000000d/framerate : 0;
+		reset();
+	}
+
+	public void reset() {
+		mSlope = mNominal;
+		mIntercept = 0;
+		mIndex = 0;
+		mCount = 0;
+		mLast = 0;
+	}
+
+	/** Returns the period of the frames, 0 until it is known. */
+	public long getPeriod() {
+		return (long) mSlope;
+	}
+
+	/**
+	 * Called each time a frame has been received.
+	 * @param arrival When the frame was received, {@link System#nanoTime()}
+	 * @return The duration between the timestamp of the previous frame and the timestamp of this frame
+	 */
+	public long push(long arrival) {
+		if (mCount == 0) {
+			// Times are relative to the first arrival so that doubles keep their precision
+			mFirst = arrival;
+			mIndex = 0;
+			mIntercept = 0;
+			add(0);
+			return (long) mSlope;
+		}
+
+		double a = arrival-mFirst;
+
+		// Frames were dropped if the gap is much longer than a period
+		long n = 1;
+		if (mSlope>0) {
+			double gap = a-(mIntercept+mSlope*mIndex);
+			if (gap>2*mSlope) n = Math.round(gap/mSlope);
+		}
+		mIndex += n;
+		add(a);
+		fit();
+
+		// Timestamps never go backward, nor too close to each other
+		double timestamp = Math.max(mIntercept+mSlope*mIndex, mLast+mSlope/4);
+		long duration = (long) (timestamp-mLast);
+		mLast += duration;
+		return duration;
+	}
+
+	private void add(double arrival) {
+		int i = mCount%WINDOW;
+		mArrivals[i] = (long) arrival;
+		mIndexes[i] = mIndex;
+		mCount++;
+	}
+
+	/** Fits a line to the arrivals of the last frames. */
+	private void fit() {
+		int n = Math.min(mCount, WINDOW);
+		double mk = 0, ma = 0;
+		for (int i=0;i<n;i++) {
+			mk += mIndexes[i];
+			ma += mArrivals[i];
+		}
+		mk /= n;
+		ma /= n;
+		if (n>=MIN_FRAMES || mNominal<=0) {
+			double skk = 0, ska = 0;
+			for (int i=0;i<n;i++) {
+				double dk = mIndexes[i]-mk;
+				skk += dk*dk;
+				ska += dk*(mArrivals[i]-ma);
+			}
+			if (skk>0) mSlope = ska/skk;
+			if (mNominal>0) mSlope = Math.max(mNominal/2, Math.min(2*mNominal, mSlope));
+		}
+		mIntercept = ma-mSlope*mk;
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Paces the packets sent by the {@link RtpSocket}.
+ *
+ * The rate of the bucket follows the bitrate of the stream, measured with the
+ * timestamps of the packets (so in media time, not in arrival time), plus some headroom
+ * so that the FIFO always drains. The depth of the bucket is a fraction of the average
+ * size of a frame: a frame may leave in a small burst but never all at once.
+ * All durations are in nanoseconds.
+ */
+public class TokenBucket {
+
+	// Weight of a new frame in the moving average of the bitrate
+	private final static double ALPHA = 0.05;
+
+	// The bucket drains the FIFO 15 % faster than the stream fills it
+	private final static double HEADROOM = 1.15;
+
+	// Fraction of a frame that may leave in a single burst
+	private final static double BURST = 0.25;
+
+	private int mMtu = RtpSocket.MTU;
+	private double mTokens = 0;
+	private double mRate = 0; // bytes per second
+	private double mFrameSize = 0; // bytes
+	private long mLast = 0;
+
+	private long mFrameTimestamp = 0;
+	private int mFrameBytes = 0;
+
+	public TokenBucket() {}
+
+	/** Sets the MTU of the path to the receivers, the bucket always holds two packets. */
+	public void setMtu(int mtu) {
+		mMtu = mtu;
+	}
+
+	public void reset() {
+		mTokens = 0;
+		mRate = 0;
+		mFrameSize = 0;
+		mLast = 0;
+		mFrameTimestamp = 0;
+		mFrameBytes = 0;
+	}
+
+	/** Returns the rate of the bucket in bit per second, 0 until the bitrate of the stream is known. */
+	public long getRate() {
+		return (long) (mRate*HEADROOM*8);
+	}
+
+	/**
+	 * Accounts for a packet of the stream and returns how long the
+	 * sender has to wait before sending it.
+	 * @param length The length of the packet
+	 * @param timestamp The timestamp of the packet
+	 * @param now The current time, {@link System#nanoTime()}
+	 * @return The delay in nanoseconds, 0 if the packet can be sent right away
+	 */
+	public long reserve(int length, long timestamp, long now) {
+		measure(length, timestamp);
+
+		// The bitrate is not known yet
+		if (mRate<=0) return 0;
+
+		double rate = mRate*HEADROOM/1000000000d;
+		double depth = Math.max(2*mMtu, mFrameSize*BURST);
+
+		if (mLast != 0) mTokens = Math.min(depth, mTokens+(now-mLast)*rate);
+		mLast = now;
+		mTokens -= length;
+
+		// Tokens may go below zero, the debt is paid by waiting
+		return mTokens>=0 ? 0 : (long) (-mTokens/rate);
+	}
+
+	/** Updates the bitrate of the stream each time a frame is complete. */
+	private void measure(int length, long timestamp) {
+		if (timestamp != mFrameTimestamp) {
+			long duration = timestamp-mFrameTimestamp;
+			if (mFrameTimestamp != 0 && duration>0 && duration<1000000000L) {
+				double rate = mFrameBytes*1000000000d/duration;
+				mRate = mRate<=0 ? rate : mRate+ALPHA*(rate-mRate);
+				mFrameSize = mFrameSize<=0 ? mFrameBytes : mFrameSize+ALPHA*(mFrameBytes-mFrameSize);
+			}
+			mFrameTimestamp = timestamp;
+			mFrameBytes = 0;
+		}
+		mFrameBytes += length;
+	}
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Computes the XOR parity of groups of consecutive RTP packets, and builds
+ * the FEC packets of RFC 5109 (ULPFEC) that carry it.
+ *
+ * A single protection level is used, so a receiver can repair one lost packet per group.
+ * The FEC packets share the SSRC and the sequence numbers of the media packets,
+ * they only differ by their payload type.
+ */
+public class UlpfecEncoder {
+
+	/** Payload type of the FEC packets. */
+	public static final int PAYLOAD_TYPE = 97;
+
+	/** FEC header and level 0 header with a 16 bits mask. */
+	public static final int HEADER_LENGTH = 14;
+
+	/** The mask of the level 0 header covers 16 packets. */
+	public static final int MAX_GROUP_SIZE = 16;
+
+	// Packetizers keep HEADER_LENGTH bytes free when FEC is enabled so the FEC packet never exceeds the MTU
+	private final byte[] mParity = new byte[RtpSocket.MAX_MTU];
+	private final byte[] mRecovery = new byte[8];
+	private int mRecoveryLength, mProtectionLength;
+	private int mGroupSize, mCount = 0, mBase;
+
+	/**
+	 * @param overhead Ratio between the FEC packets and the media packets, 0.1 means one FEC packet every ten packets
+	 */
+	public UlpfecEncoder(double overhead) {
+		setOverhead(overhead);
+	}
+
+	/** Sets the ratio between the FEC packets and the media packets, it is rounded to 1/n. */
+	public void setOverhead(double overhead) {
+		if (overhead<=0) throw new IllegalArgumentException("The overhead must be positive !");
+		mGroupSize = Math.max(1, Math.min(MAX_GROUP_SIZE, (int) Math.round(1/overhead)));
+	}
+
+	/** Returns the number of media packets protected by each FEC packet. */
+	public int getGroupSize() {
+		return mGroupSize;
+	}
+
+	public void reset() {
+		mCount = 0;
+	}
+
+	/**
+	 * Adds a packet to the current group.
+	 * @param packet The RTP packet, header included
+	 * @param length The length of the packet
+	 * @return True if the group is complete and {@link #build(byte[])} must be called
+	 */
+	public boolean protect(byte[] packet, int length) {
+		int payload = length-RtpSocket.RTP_HEADER_LENGTH;
+		if (mCount == 0) {
+			mBase = ((packet[2]&0xFF)<<8) | (packet[3]&0xFF);
+			for (int i=0;i<8;i++) mRecovery[i] = 0;
+			for (int i=0;i<mProtectionLength;i++) mParity[i] = 0;
+			mRecoveryLength = 0;
+			mProtectionLength = 0;
+		}
+		// P, X, CC, M, PT and timestamp of the packet
+		mRecovery[0] ^= packet[0];
+		mRecovery[1] ^= packet[1];
+		for (int i=4;i<8;i++) mRecovery[i] ^= packet[i];
+		mRecoveryLength ^= payload;
+		for (int i=0;i<payload;i++) mParity[i] ^= packet[RtpSocket.RTP_HEADER_LENGTH+i];
+		if (payload>mProtectionLength) mProtectionLength = payload;
+		return ++mCount>=mGroupSize;
+	}
+
+	/**
+	 * Writes the FEC header and the parity of the current group after the RTP header
+	 * of the packet, and starts a new group.
+	 * @param packet The FEC packet, its RTP header is filled by the caller
+	 * @return The length of the FEC packet, header included
+	 */
+	public int build(byte[] packet) {
+		int o = RtpSocket.RTP_HEADER_LENGTH;
+		int mask = (0xFFFF<<(MAX_GROUP_SIZE-mCount))&0xFFFF;
+
+		// E = 0, L = 0 (16 bits mask), P, X and CC recovery
+		packet[o] = (byte) (mRecovery[0]&0x3F);
+		// M and PT recovery
+		packet[o+1] = mRecovery[1];
+		setShort(packet, mBase, o+2);
+		for (int i=4;i<8;i++) packet[o+i] = mRecovery[i];
+		setShort(packet, mRecoveryLength, o+8);
+
+		// Level 0 header
+		setShort(packet, mProtectionLength, o+10);
+		setShort(packet, mask, o+12);
+
+		System.arraycopy(mParity, 0, packet, o+HEADER_LENGTH, mProtectionLength);
+		mCount = 0;
+		return o+HEADER_LENGTH+mProtectionLength;
+	}
+
+	private static void setShort(byte[] buffer, int n, int offset) {
+		buffer[offset] = (byte) (n>>8);
+		buffer[offset+1] = (byte) n;
+	}
+
+}
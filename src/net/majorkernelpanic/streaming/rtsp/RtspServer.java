@@ -20,24 +20,43 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Locale;
-import java.util.WeakHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.majorkernelpanic.streaming.ConfigCache;
+import net.majorkernelpanic.streaming.MediaStream;
+import net.majorkernelpanic.streaming.ResourceGovernor;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtp.RtpDestination;
+import net.majorkernelpanic.streaming.video.VideoStream;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -45,6 +64,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -88,7 +108,28 @@ public class RtspServer extends Service {
 	protected SharedPreferences mSharedPreferences;
 	protected boolean mEnabled = true;	
 	protected int mPort = DEFAULT_RTSP_PORT;
-	protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<Session,Object>(2);
+
+	/** Parameters of the video track that can be read with GET_PARAMETER and changed live with SET_PARAMETER. */
+	public static final String PARAMETER_BITRATE = "bitrate", PARAMETER_FRAMERATE = "framerate", 
+			PARAMETER_KEY_FRAME_INTERVAL = "keyframe_interval";
+
+	/** 
+	 * Default timeout of the RTSP sessions in seconds, advertised in the Session header. 
+	 * The receivers send a RTCP report every 5 seconds or so, a few of them may be lost.
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 20;
+
+	protected int mSessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+	/** RTSP sessions of the clients, indexed by their ID. */
+	private final ConcurrentHashMap<String,Connection> mRtspSessions = new ConcurrentHashMap<String,Connection>();
+	private final SecureRandom mRandom = new SecureRandom();
+
+	/** Unicast sessions that new clients requesting the same URI can join, indexed by {@link #getSharingKey(String)}. */
+	protected final HashMap<String,Session> mSharedSessions = new HashMap<String,Session>();
+
+	/** Multicast sessions being streamed, indexed by their group address. Guarded by mSharedSessions. */
+	private final HashMap<String,MulticastGroup> mMulticastGroups = new HashMap<String,MulticastGroup>();
 	
 	private RequestListener mListenerThread;
 	private final IBinder mBinder = new LocalBinder();
@@ -158,6 +199,7 @@ public class RtspServer extends Service {
 		if (mEnabled && mListenerThread == null) {
 			try {
 				mListenerThread = new RequestListener();
+				warmUp();
 			} catch (Exception e) {
 				mListenerThread = null;
 			}
@@ -165,6 +207,32 @@ public class RtspServer extends Service {
 		mRestart = false;
 	}
 
+	/** 
+	 * Configures the default session in the background, so that the first DESCRIBE finds
+	 * the configuration of its streams in the {@link ConfigCache} and is answered right away.
+	 */
+	protected void warmUp() {
+		try {
+			mListenerThread.handle(new Runnable() {
+				@Override
+				public void run() {
+					Session session = null;
+					try {
+						session = SessionBuilder.getInstance().build();
+						session.syncConfigure();
+					} catch (Exception e) {
+						Log.e(TAG,"Warm up failed: "+(e.getMessage()!=null?e.getMessage():e.toString()));
+					} finally {
+						// Closes the camera, Session.release() would quit the thread shared by all sessions
+						try {
+							if (session != null) session.syncStop();
+						} catch (RuntimeException ignore) {}
+					}
+				}
+			});
+		} catch (RejectedExecutionException ignore) {}
+	}
+
 	/** 
 	 * ֹͣRTSPAndroid 
 	 * ֹͣAndroidҪ {@link android.content.Context#stopService(Intent)}; 
@@ -172,8 +240,9 @@ public class RtspServer extends Service {
 	public void stop() {
 		if (mListenerThread != null) {
 			try {
+				Collection<Session> sessions = getSessions();
 				mListenerThread.kill();
-				for ( Session session : mSessions.keySet() ) {
+				for ( Session session : sessions ) {
 				    if ( session != null ) {
 				    	if (session.isStreaming()) session.stop();
 				    } 
@@ -187,7 +256,7 @@ public class RtspServer extends Service {
 
 	/** RTSPǷһЩͻ˽䡣 */
 	public boolean isStreaming() {
-		for ( Session session : mSessions.keySet() ) {
+		for ( Session session : getSessions() ) {
 		    if ( session != null ) {
 		    	if (session.isStreaming()) return true;
 		    } 
@@ -199,10 +268,49 @@ public class RtspServer extends Service {
 		return mEnabled;
 	}
 
+	/**
+	 * Sets the timeout of the RTSP sessions. A session is released when its client sends 
+	 * no request (GET_PARAMETER or OPTIONS usually) and no RTCP report for that long.
+	 * @param timeout The timeout in seconds
+	 */
+	public void setSessionTimeout(int timeout) {
+		if (timeout<=0) throw new IllegalArgumentException("The timeout must be positive !");
+		mSessionTimeout = timeout;
+	}
+
+	/** Returns the timeout of the RTSP sessions in seconds. */
+	public int getSessionTimeout() {
+		return mSessionTimeout;
+	}
+
+	/** Returns the number of RTSP sessions. */
+	public int getSessionCount() {
+		return mRtspSessions.size();
+	}
+
+	/** Returns the sessions of the clients, a session shared by several clients is returned once. */
+	private Collection<Session> getSessions() {
+		HashSet<Session> sessions = new HashSet<Session>();
+		for (Connection connection : mRtspSessions.values()) {
+			Session session = connection.mSession;
+			if (session != null) sessions.add(session);
+		}
+		return sessions;
+	}
+
+	/** Registers the RTSP session of a client under a new random ID. */
+	private String register(Connection connection) {
+		String id;
+		do {
+			id = Long.toHexString(mRandom.nextLong()|0x1000000000000000L);
+		} while (mRtspSessions.putIfAbsent(id, connection) != null);
+		return id;
+	}
+
 	/** RTSPĵĴıÿ롣 */
 	public long getBitrate() {
 		long bitrate = 0;
-		for ( Session session : mSessions.keySet() ) {
+		for ( Session session : getSessions() ) {
 		    if ( session != null ) {
 		    	if (session.isStreaming()) bitrate += session.getBitrate();
 		    } 
@@ -302,40 +410,177 @@ public class RtspServer extends Service {
 		return session;
 	}
 	
+	/**
+	 * Clients requesting URIs with the same key receive the same session: the stream 
+	 * is encoded and packetized once and each packet is sent to every client.
+	 * By default the key is the query string of the URI.
+	 * @param uri The uri requested by the client
+	 */
+	protected String getSharingKey(String uri) {
+		int i = uri.indexOf('?');
+		return i<0 ? "" : uri.substring(i+1);
+	}
+
+	private static boolean isMulticast(Session session) throws IOException {
+		return session.getDestination() != null && InetAddress.getByName(session.getDestination()).isMulticastAddress();
+	}
+
+	/** 
+	 * A multicast session and the clients that receive it. The session is encoded once
+	 * and sent to the group, whatever the number of clients, it stops when the last one leaves.
+	 */
+	static class MulticastGroup {
+
+		final Session session;
+		final HashSet<Connection> members = new HashSet<Connection>();
+
+		MulticastGroup(Session session) {
+			this.session = session;
+		}
+
+	}
+
+	/** Returns true if at least one track of the session still has a receiver. */
+	private static boolean hasReceivers(Session session) {
+		for (int id=0;id<2;id++) {
+			if (session.trackExists(id) && ((MediaStream)session.getTrack(id)).getDestinationCount()>0) return true;
+		}
+		return false;
+	}
+
+	/** 
+	 * Accepts the connections and reads the requests of all the clients with a single 
+	 * selector, without blocking. Requests that may take long to handle (DESCRIBE, SETUP,
+	 * and the release of the session when a client disconnects) are handled by a small 
+	 * pool of threads, idle connections don't cost a thread.
+	 */
 	class RequestListener extends Thread implements Runnable {
 
-		private final ServerSocket mServer;
+		/** Number of threads handling the slow requests. */
+		private static final int HANDLER_THREADS = 4;
+
+		/** Slow requests waiting for a thread, a client gets a 503 beyond that. */
+		private static final int HANDLER_QUEUE = 32;
+
+		/** Period of the search for expired sessions in milliseconds. */
+		private static final int REAPER_PERIOD = 1000;
+
+		private long mLastReap = 0;
+
+		private final ServerSocketChannel mServer;
+		private final Selector mSelector;
+		private final ThreadPoolExecutor mHandlers;
+
+		// Operations that must run on the thread of the selector
+		private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
 
 		public RequestListener() throws IOException {
 			try {
-				mServer = new ServerSocket(mPort);
-				start();
+				mServer = ServerSocketChannel.open();
+				mServer.socket().bind(new InetSocketAddress(mPort));
+				mServer.configureBlocking(false);
+				mSelector = Selector.open();
+				mServer.register(mSelector, SelectionKey.OP_ACCEPT);
 			} catch (BindException e) {
 				Log.e(TAG,"Port already in use !");
 				postError(e, ERROR_BIND_FAILED);
 				throw e;
 			}
+			mHandlers = new ThreadPoolExecutor(HANDLER_THREADS, HANDLER_THREADS, 30, TimeUnit.SECONDS, 
+					new ArrayBlockingQueue<Runnable>(HANDLER_QUEUE));
+			mHandlers.allowCoreThreadTimeOut(true);
+			start();
 		}
 
 		public void run() {
-			Log.i(TAG,"RTSP server listening on port "+mServer.getLocalPort());
+			Log.i(TAG,"RTSP server listening on port "+mServer.socket().getLocalPort());
 			while (!Thread.interrupted()) {
 				try {
-					new WorkerThread(mServer.accept()).start();
-				} catch (SocketException e) {
-					break;
+					mSelector.select(REAPER_PERIOD);
 				} catch (IOException e) {
-					Log.e(TAG,e.getMessage());
-					continue;
+					Log.e(TAG,e.getMessage()!=null?e.getMessage():"Select failed");
+					break;
+				}
+				Runnable task;
+				while ((task = mTasks.poll()) != null) task.run();
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						if (key.isWritable()) connection.write();
+						if (key.isValid() && key.isReadable()) connection.read();
+					}
 				}
+				long now = SystemClock.elapsedRealtime();
+				if (now-mLastReap>=REAPER_PERIOD) {
+					mLastReap = now;
+					reap(now);
+				}
+			}
+			for (SelectionKey key : mSelector.keys()) {
+				if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
 			}
+			mHandlers.shutdown();
+			try {
+				mSelector.close();
+				mServer.close();
+			} catch (IOException ignore) {}
 			Log.i(TAG,"RTSP server stopped !");
 		}
 
-		public void kill() {
+		private void accept() {
 			try {
-				mServer.close();
-			} catch (IOException e) {}
+				SocketChannel channel;
+				while ((channel = mServer.accept()) != null) {
+					channel.configureBlocking(false);
+					SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+					key.attach(new Connection(this, channel, key));
+				}
+			} catch (IOException e) {
+				Log.e(TAG,e.getMessage()!=null?e.getMessage():"Accept failed");
+			}
+		}
+
+		/** 
+		 * Closes the connections of the clients that vanished without a TEARDOWN, their 
+		 * sessions are then released like when they disconnect. A client that sent a
+		 * DESCRIBE holds a configured session even before its first SETUP.
+		 */
+		private void reap(long now) {
+			long timeout = mSessionTimeout*1000L;
+			// Canceled keys only leave the set at the next select
+			for (SelectionKey key : mSelector.keys()) {
+				if (!(key.attachment() instanceof Connection)) continue;
+				Connection connection = (Connection) key.attachment();
+				if (connection.isExpired(now, timeout)) {
+					Log.i(TAG, "Connection from "+connection.mClient.getInetAddress().getHostAddress()+" timed out");
+					connection.close();
+				}
+			}
+		}
+
+		/** Runs a task on the thread of the selector. */
+		public void post(Runnable task) {
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+
+		/** 
+		 * Runs a slow task on the pool of handlers. 
+		 * @throws RejectedExecutionException If too many tasks are already waiting
+		 */
+		public void handle(Runnable task) {
+			mHandlers.execute(task);
+		}
+
+		public void kill() {
+			interrupt();
+			mSelector.wakeup();
 			try {
 				this.join();
 			} catch (InterruptedException ignore) {}
@@ -343,101 +588,326 @@ public class RtspServer extends Service {
 
 	}
 
-	//ÿͻ˵ĵ߳
-	class WorkerThread extends Thread implements Runnable {
+	/** 
+	 * The RTSP connection of a client. All its methods are called on the thread 
+	 * of the selector, except {@link #processRequest(Request)} and {@link #detach()}.
+	 * Requests are handled one at a time, in order.
+	 */
+	class Connection {
+
+		/** Largest request accepted, headers and content included. */
+		private static final int MAX_REQUEST_SIZE = 8192;
 
+		/** How long PLAY waits for the first packet of each stream before answering, in ms. */
+		private static final int RESUME_TIMEOUT = 500;
+
+		private final RequestListener mListener;
+		private final SocketChannel mChannel;
+		private final SelectionKey mKey;
 		private final Socket mClient;
-		private final OutputStream mOutput;
-		private final BufferedReader mInput;
+		private final ByteBuffer mInput = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+		private final LinkedList<ByteBuffer> mOutput = new LinkedList<ByteBuffer>();
+
+		// True while a request is handled by the pool, next requests wait in mInput
+		private boolean mBusy = false;
+		private boolean mClosed = false, mClosing = false;
 
 		// ÿͻһsession
-		private Session mSession;
+		private volatile Session mSession;
 
-		public WorkerThread(final Socket client) throws IOException {
-			mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-			mOutput = client.getOutputStream();
-			mClient = client;
-			mSession = new Session();
-		}
+		// True if the session was started by another client
+		private boolean mShared = false;
 
-		public void run() {
-			Request request;
-			Response response;
+		// ID of the RTSP session, null until the first SETUP
+		private volatile String mSessionId = null;
+
+		// True from the DESCRIBE that configured mSession until the TEARDOWN
+		private volatile boolean mDescribed = false;
+
+		// Last request received, SystemClock.elapsedRealtime()
+		private volatile long mLastRequest = SystemClock.elapsedRealtime();
 
+		// Destinations receiving the session for this client, their RTCP reports keep the session alive
+		private final CopyOnWriteArrayList<RtpDestination> mReceivers = new CopyOnWriteArrayList<RtpDestination>();
+
+		// Destinations added to a shared session for this client
+		private final HashMap<RtpDestination,MediaStream> mDestinations = new HashMap<RtpDestination,MediaStream>();
+
+		// The multicast group joined by the client, null if the session is not multicast
+		private MulticastGroup mGroup = null;
+
+		public Connection(RequestListener listener, SocketChannel channel, SelectionKey key) {
+			mListener = listener;
+			mChannel = channel;
+			mKey = key;
+			mClient = channel.socket();
+			mSession = new Session();
 			Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+		}
 
-			while (!Thread.interrupted()) {
+		public void read() {
+			int n;
+			try {
+				n = mChannel.read(mInput);
+			} catch (IOException e) {
+				n = -1;
+			}
+			if (n<0) {
+				// The client disconnected
+				close();
+				return;
+			}
+			next();
+		}
 
-				request = null;
-				response = null;
+		/** Handles the requests received, as long as they are complete. */
+		private void next() {
+			while (!mBusy && !mClosed && !mClosing) {
+				mInput.flip();
+				int length = Request.frame(mInput);
+				if (length == 0) {
+					mInput.compact();
+					if (!mInput.hasRemaining()) {
+						// The request is too large, the connection is closed after the response
+						mClosing = true;
+						Response response = new Response();
+						response.status = Response.STATUS_BAD_REQUEST;
+						send(response);
+					}
+					return;
+				}
 
-				// 
+				Request parsed = null;
 				try {
-					request = Request.parseRequest(mInput);
-				} catch (SocketException e) {
-					// ͻѾϿ
-					break;
-				} catch (Exception e) {
-					// ǲ :/
-					response = new Response();
+					parsed = Request.parse(mInput.array(), mInput.arrayOffset()+mInput.position(), length);
+				} catch (IllegalArgumentException ignore) {}
+				mInput.position(mInput.position()+length);
+				mInput.compact();
+
+				mLastRequest = SystemClock.elapsedRealtime();
+				if (parsed == null) {
+					// We don't understand the request :/
+					Response response = new Response();
 					response.status = Response.STATUS_BAD_REQUEST;
+					send(response);
+					continue;
 				}
+				final Request request = parsed;
 
-				//һЩ飬һ,һỰ
-				// Do something accordingly like starting the streams, sending a session description
-				if (request != null) {
-					try {
-						response = processRequest(request);
-					}
-					catch (Exception e) {
-						// ̳߳߳
-						postError(e, ERROR_START_FAILED);
-						Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
-						e.printStackTrace();
-						response = new Response(request);
-					}
+				if (!isSlow(request.method)) {
+					send(handle(request));
+					continue;
 				}
 
-				// ǷһӦ
-				// ׳һ쳣ͻ˽õһڲ
+				mBusy = true;
 				try {
-					response.send(mOutput);
-				} catch (IOException e) {
-					Log.e(TAG,"Response was not sent properly");
-					break;
+					mListener.handle(new Runnable() {
+						@Override
+						public void run() {
+							final Response response = handle(request);
+							mListener.post(new Runnable() {
+								@Override
+								public void run() {
+									mBusy = false;
+									if (mClosed) {
+										disconnect();
+									} else {
+										send(response);
+										next();
+									}
+								}
+							});
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					mBusy = false;
+					Response response = new Response(request);
+					response.status = Response.STATUS_SERVICE_UNAVAILABLE;
+					response.attributes = "Retry-After: "+ResourceGovernor.getInstance().getRetryAfter()+"\r\n";
+					send(response);
 				}
+			}
+		}
+
+		/** 
+		 * The requests that may start or stop the streams, or reconfigure the camera, are handled by the pool.
+		 * So is PLAY, which waits for the first packets sent to the client.
+		 */
+		private boolean isSlow(String method) {
+			return method.equalsIgnoreCase("DESCRIBE") || method.equalsIgnoreCase("SETUP") || method.equalsIgnoreCase("TEARDOWN")
+					|| method.equalsIgnoreCase("SET_PARAMETER") || method.equalsIgnoreCase("PLAY");
+		}
 
+		private Response handle(Request request) {
+			try {
+				return processRequest(request);
+			} catch (Exception e) {
+				// This alerts the main thread that something has gone wrong in this thread
+				postError(e, ERROR_START_FAILED);
+				Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+				e.printStackTrace();
+				// The client will receive a "500 Internal Server Error"
+				return new Response(request);
 			}
+		}
+
+		private void send(Response response) {
+			mOutput.add(ByteBuffer.wrap(response.getBytes()));
+			write();
+		}
 
-			// ýͻ˶Ͽʱֹͣ
-			boolean streaming = isStreaming();
-			mSession.syncStop();
-			if (streaming && !isStreaming()) {
-				postMessage(MESSAGE_STREAMING_STOPPED);
+		/** Writes as much of the responses as the socket accepts, the rest is written when it becomes writable. */
+		public void write() {
+			if (mClosed) return;
+			try {
+				while (!mOutput.isEmpty()) {
+					ByteBuffer buffer = mOutput.getFirst();
+					mChannel.write(buffer);
+					if (buffer.hasRemaining()) {
+						mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+					mOutput.removeFirst();
+				}
+				mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+				if (mClosing) close();
+			} catch (IOException e) {
+				Log.e(TAG,"Response was not sent properly");
+				close();
 			}
-			mSession.release();
+		}
 
+		/** Closes the connection, the session is released by the pool once no request is being handled. */
+		public void close() {
+			if (mClosed) return;
+			mClosed = true;
+			if (mSessionId != null) mRtspSessions.remove(mSessionId);
+			mKey.cancel();
 			try {
-				mClient.close();
+				mChannel.close();
 			} catch (IOException ignore) {}
+			if (!mBusy) disconnect();
+		}
+
+		/**
+		 * A client shows that it is alive with its requests and with the RTCP reports of its 
+		 * receivers. A BYE from one of its receivers ends the session right away.
+		 * A connection that holds no session never expires.
+		 */
+		public boolean isExpired(long now, long timeout) {
+			if (mClosed || !mDescribed) return false;
+			long last = mLastRequest;
+			for (RtpDestination receiver : mReceivers) {
+				// The destination of a multicast group receives the reports of all its members
+				long time = mGroup != null ? receiver.getLastReportTime(mClient.getInetAddress()) : receiver.getLastReportTime();
+				if (time<0) return true;
+				if (time>last) last = time;
+			}
+			return now-last>timeout;
+		}
 
-			Log.i(TAG, "Client disconnected");
+		/** Returns the Session header of the responses. */
+		private String getSessionHeader() {
+			return mSessionId != null ? "Session: "+mSessionId+";timeout="+mSessionTimeout+"\r\n" : "";
+		}
 
+		/** Stops the streams when the client disconnects. */
+		private void disconnect() {
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					boolean streaming = isStreaming();
+					detach();
+					if (streaming && !isStreaming()) {
+						postMessage(MESSAGE_STREAMING_STOPPED);
+					}
+					Log.i(TAG, "Client disconnected");
+				}
+			};
+			try {
+				mListener.handle(task);
+			} catch (RejectedExecutionException e) {
+				task.run();
+			}
 		}
 
 		public Response processRequest(Request request) throws IllegalStateException, IOException {
 			Response response = new Response(request);
 
+			String id = request.headers.get("session");
+			if (id != null) {
+				// The header may carry the timeout
+				int i = id.indexOf(';');
+				if (i>=0) id = id.substring(0, i).trim();
+				if (!id.equals(mSessionId)) {
+					Connection owner = mRtspSessions.get(id);
+					if (owner == null) {
+						response.status = Response.STATUS_SESSION_NOT_FOUND;
+						return response;
+					}
+					// A keep-alive sent on another connection
+					owner.mLastRequest = SystemClock.elapsedRealtime();
+					if (!request.method.equalsIgnoreCase("GET_PARAMETER") && !request.method.equalsIgnoreCase("OPTIONS")) {
+						response.status = Response.STATUS_METHOD_NOT_VALID;
+						return response;
+					}
+				}
+			}
+
+			// After a TEARDOWN, the client must send a new DESCRIBE
+			if (mSession == null && (request.method.equalsIgnoreCase("SETUP") || 
+					request.method.equalsIgnoreCase("PLAY") || request.method.equalsIgnoreCase("PAUSE"))) {
+				response.status = Response.STATUS_METHOD_NOT_VALID;
+				return response;
+			}
+
 			/* ********************************************************************************** */
 			/* ********************************* Method DESCRIBE ******************************** */
 			/* ********************************************************************************** */
 			if (request.method.equalsIgnoreCase("DESCRIBE")) {
 
 				// URIûỰ
-				mSession = handleRequest(request.uri, mClient);
-				mSessions.put(mSession, null);
-				mSession.syncConfigure();
+				String key = getSharingKey(request.uri);
+				synchronized (mSharedSessions) {
+					Session shared = mSharedSessions.get(key);
+					mShared = shared != null && shared.isStreaming() && !isMulticast(shared);
+					if (mShared) mSession = shared;
+					// A multicast session already streamed is joined rather than encoded again
+					if (shared != null && !mShared) mGroup = mMulticastGroups.get(shared.getDestination());
+					if (mGroup != null && mGroup.session != shared) mGroup = null;
+					if (mGroup != null) mSession = shared;
+				}
+				if (!mShared && mGroup == null) {
+					Session session = handleRequest(request.uri, mClient);
+					if (isMulticast(session)) {
+						// Another URI may stream to the same group
+						synchronized (mSharedSessions) {
+							mGroup = mMulticastGroups.get(session.getDestination());
+						}
+					}
+					if (mGroup != null) {
+						// Closes the camera, Session.release() would quit the thread shared by all sessions
+						session.syncStop();
+						mSession = mGroup.session;
+					} else {
+						// Nothing is encoded beyond the budget of the device, the client may come back later
+						int decision = ResourceGovernor.getInstance().admit(session);
+						if (decision != ResourceGovernor.ADMITTED) {
+							session.syncStop();
+							response.status = decision == ResourceGovernor.REJECTED_BANDWIDTH ? 
+									Response.STATUS_NOT_ENOUGH_BANDWIDTH : Response.STATUS_SERVICE_UNAVAILABLE;
+							response.attributes = "Retry-After: "+ResourceGovernor.getInstance().getRetryAfter()+"\r\n";
+							return response;
+						}
+						mSession = session;
+						mSession.syncConfigure();
+						synchronized (mSharedSessions) {
+							mSharedSessions.put(key, mSession);
+						}
+					}
+				}
 				
+				mDescribed = true;
 				String requestContent = mSession.getSessionDescription();
 				String requestAttributes = 
 						"Content-Base: "+mClient.getLocalAddress().getHostAddress()+":"+mClient.getLocalPort()+"/\r\n" +
@@ -456,7 +926,7 @@ public class RtspServer extends Service {
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("OPTIONS")) {
 				response.status = Response.STATUS_OK;
-				response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+				response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER,SET_PARAMETER\r\n";
 				response.status = Response.STATUS_OK;
 			}
 
@@ -464,12 +934,11 @@ public class RtspServer extends Service {
 			/* ********************************** Method SETUP ********************************** */
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("SETUP")) {
-				Pattern p; Matcher m;
+				Matcher m;
 				int p2, p1, ssrc, trackId, src[];
 				String destination;
 
-				p = Pattern.compile("trackID=(\\w+)",Pattern.CASE_INSENSITIVE);
-				m = p.matcher(request.uri);
+				m = Request.regexTrackId.matcher(request.uri);
 
 				if (!m.find()) {
 					response.status = Response.STATUS_BAD_REQUEST;
@@ -483,8 +952,7 @@ public class RtspServer extends Service {
 					return response;
 				}
 
-				p = Pattern.compile("client_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE);
-				m = p.matcher(request.headers.get("transport"));
+				m = Request.regexClientPort.matcher(request.headers.get("transport"));
 
 				if (!m.find()) {
 					int[] ports = mSession.getTrack(trackId).getDestinationPorts();
@@ -496,25 +964,85 @@ public class RtspServer extends Service {
 					p2 = Integer.parseInt(m.group(2));
 				}
 
-				ssrc = mSession.getTrack(trackId).getSSRC();
-				src = mSession.getTrack(trackId).getLocalPorts();
-				destination = mSession.getDestination();
-
-				mSession.getTrack(trackId).setDestinationPorts(p1, p2);
-				
-				boolean streaming = isStreaming();
-				mSession.syncStart(trackId);
-				if (!streaming && isStreaming()) {
-					postMessage(MESSAGE_STREAMING_STARTED);
+				MediaStream stream = (MediaStream) mSession.getTrack(trackId);
+				boolean multicast = isMulticast(mSession);
+
+				if (mShared) {
+					// The track is already streamed to another client, we only add a destination to it
+					synchronized (mSharedSessions) {
+						if (!stream.isStreaming()) {
+							response.status = Response.STATUS_METHOD_NOT_VALID;
+							return response;
+						}
+						RtpDestination previous = findDestination(stream);
+						if (previous != null) {
+							stream.removeDestination(previous);
+							mDestinations.remove(previous);
+							mReceivers.remove(previous);
+						}
+						// The new viewer receives the stream once it sends PLAY
+						RtpDestination rtp = stream.addHeldDestination(mClient.getInetAddress(), p1, p2);
+						mDestinations.put(rtp, stream);
+						mReceivers.add(rtp);
+						ssrc = rtp.getSSRC();
+						src = new int[] {stream.getLocalPorts()[0], rtp.getRtcpSocket().getLocalPort()};
+						destination = mClient.getInetAddress().getHostAddress();
+					}
+				} else if (mGroup != null && stream.isStreaming()) {
+					// The track is already streamed to the multicast group, the client gets its transport parameters
+					synchronized (mSharedSessions) {
+						if (mMulticastGroups.get(mSession.getDestination()) != mGroup) {
+							response.status = Response.STATUS_METHOD_NOT_VALID;
+							return response;
+						}
+						mGroup.members.add(this);
+						RtpDestination primary = stream.getPacketizer().getRtpSocket().getPrimaryDestination();
+						if (primary != null && !mReceivers.contains(primary)) mReceivers.add(primary);
+					}
+					int[] ports = stream.getDestinationPorts();
+					p1 = ports[0];
+					p2 = ports[1];
+					ssrc = stream.getSSRC();
+					src = stream.getLocalPorts();
+					destination = mSession.getDestination();
+				} else {
+					ssrc = mSession.getTrack(trackId).getSSRC();
+					src = mSession.getTrack(trackId).getLocalPorts();
+					destination = mSession.getDestination();
+
+					mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+
+					boolean streaming = isStreaming();
+					mSession.syncStart(trackId);
+					if (!streaming && isStreaming()) {
+						postMessage(MESSAGE_STREAMING_STARTED);
+					}
+					// The client receives the stream once it sends PLAY, a multicast group is streamed right away
+					RtpDestination primary = stream.getPacketizer().getRtpSocket().getPrimaryDestination();
+					if (primary != null) {
+						if (!multicast) stream.pause(primary);
+						if (!mReceivers.contains(primary)) mReceivers.add(primary);
+					}
+					if (multicast) {
+						synchronized (mSharedSessions) {
+							if (mGroup == null) {
+								mGroup = new MulticastGroup(mSession);
+								mMulticastGroups.put(destination, mGroup);
+							}
+							mGroup.members.add(this);
+						}
+					}
 				}
 
-				response.attributes = "Transport: RTP/AVP/UDP;"+(InetAddress.getByName(destination).isMulticastAddress()?"multicast":"unicast")+
-						";destination="+mSession.getDestination()+
-						";client_port="+p1+"-"+p2+
+				if (mSessionId == null) mSessionId = register(this);
+
+				response.attributes = "Transport: RTP/AVP/UDP;"+(multicast?"multicast":"unicast")+
+						";destination="+destination+
+						(multicast ? ";port="+p1+"-"+p2+";ttl="+mSession.getTimeToLive() : ";client_port="+p1+"-"+p2)+
 						";server_port="+src[0]+"-"+src[1]+
 						";ssrc="+Integer.toHexString(ssrc)+
 						";mode=play\r\n" +
-						"Session: "+ "1185d20035702ca" + "\r\n" +
+						getSessionHeader() +
 						"Cache-Control: no-cache\r\n";
 				response.status = Response.STATUS_OK;
 
@@ -527,12 +1055,35 @@ public class RtspServer extends Service {
 			/* ********************************** Method PLAY *********************************** */
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("PLAY")) {
-				String requestAttributes = "RTP-Info: ";
-				if (mSession.trackExists(0)) requestAttributes += "url=rtsp://"+mClient.getLocalAddress().getHostAddress()+":"+mClient.getLocalPort()+"/trackID="+0+";seq=0,";
-				if (mSession.trackExists(1)) requestAttributes += "url=rtsp://"+mClient.getLocalAddress().getHostAddress()+":"+mClient.getLocalPort()+"/trackID="+1+";seq=0,";
-				requestAttributes = requestAttributes.substring(0, requestAttributes.length()-1) + "\r\nSession: 1185d20035702ca\r\n";
+				// The streams are resumed first, RTP-Info then tells where they start for the client
+				String info = "";
+				boolean replayed = false;
+				RtpDestination[] receivers = new RtpDestination[2];
+				synchronized (mSharedSessions) {
+					for (int track=0;track<2;track++) {
+						if (!mSession.trackExists(track)) continue;
+						MediaStream stream = (MediaStream) mSession.getTrack(track);
+						receivers[track] = getReceiver(stream);
+						if (receivers[track] == null) continue;
+						// The cached group of pictures is sent first
+						if (stream.play(receivers[track]) && stream instanceof VideoStream) replayed = true;
+					}
+				}
+				// Otherwise the client can decode the stream as soon as it receives a key frame
+				if (!replayed) requestKeyFrame();
+				for (int track=0;track<2;track++) {
+					if (receivers[track] == null) continue;
+					// The timestamp is the one of the first packet actually sent, if it leaves in time
+					try {
+						receivers[track].awaitResume(RESUME_TIMEOUT);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					info += (info.length()>0 ? "," : "")+"url=rtsp://"+mClient.getLocalAddress().getHostAddress()+":"+mClient.getLocalPort()+"/trackID="+track+
+							";seq="+receivers[track].getResumeSequence()+";rtptime="+receivers[track].getResumeTimestamp();
+				}
 
-				response.attributes = requestAttributes;
+				response.attributes = (info.length()>0 ? "RTP-Info: "+info+"\r\n" : "") + getSessionHeader();
 
 				// û쳣׳,ǻظok
 				response.status = Response.STATUS_OK;
@@ -543,6 +1094,16 @@ public class RtspServer extends Service {
 			/* ********************************** Method PAUSE ********************************** */
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("PAUSE")) {
+				// The camera and the encoder keep running, so that a later PLAY resumes right away
+				synchronized (mSharedSessions) {
+					for (int track=0;track<2;track++) {
+						if (!mSession.trackExists(track)) continue;
+						MediaStream stream = (MediaStream) mSession.getTrack(track);
+						RtpDestination receiver = getReceiver(stream);
+						if (receiver != null) stream.pause(receiver);
+					}
+				}
+				response.attributes = getSessionHeader();
 				response.status = Response.STATUS_OK;
 			}
 
@@ -550,9 +1111,75 @@ public class RtspServer extends Service {
 			/* ********************************* Method TEARDOWN ******************************** */
 			/* ********************************************************************************** */
 			else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+				response.attributes = getSessionHeader();
+				boolean streaming = isStreaming();
+				detach();
+				mDescribed = false;
+				if (streaming && !isStreaming()) {
+					postMessage(MESSAGE_STREAMING_STOPPED);
+				}
+				if (mSessionId != null) mRtspSessions.remove(mSessionId);
+				mSessionId = null;
 				response.status = Response.STATUS_OK;
 			}
 
+			/* ********************************************************************************** */
+			/* ******************************* Method GET_PARAMETER ***************************** */
+			/* ********************************************************************************** */
+			else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+				// Clients send it without a body to keep their session alive
+				response.attributes = getSessionHeader();
+				response.status = Response.STATUS_OK;
+				if (request.content.trim().length()>0) {
+					VideoStream video = getVideoStream();
+					String content = "", unknown = "";
+					for (String name : parseParameters(request.content).keySet()) {
+						String value = video != null ? getParameter(video, name) : null;
+						if (value != null) content += name+": "+value+"\r\n";
+						else unknown += name+"\r\n";
+					}
+					if (unknown.length()>0) {
+						response.status = Response.STATUS_PARAMETER_NOT_UNDERSTOOD;
+						content = unknown;
+					}
+					response.attributes += "Content-Type: text/parameters\r\n";
+					response.content = content;
+				}
+			}
+
+			/* ********************************************************************************** */
+			/* ******************************* Method SET_PARAMETER ***************************** */
+			/* ********************************************************************************** */
+			else if (request.method.equalsIgnoreCase("SET_PARAMETER")) {
+				// Retunes the encoder of the video track live, for every client of the session
+				response.attributes = getSessionHeader();
+				VideoStream video = getVideoStream();
+				if (video == null || !video.isStreaming()) {
+					response.status = Response.STATUS_METHOD_NOT_VALID;
+					return response;
+				}
+				LinkedHashMap<String,String> parameters = parseParameters(request.content);
+				// All the values are checked before any is applied
+				String unknown = "";
+				for (Map.Entry<String,String> parameter : parameters.entrySet()) {
+					if (parseValue(parameter.getKey(), parameter.getValue())<0) unknown += parameter.getKey()+"\r\n";
+				}
+				if (unknown.length() == 0) {
+					for (Map.Entry<String,String> parameter : parameters.entrySet()) {
+						if (!setParameter(video, parameter.getKey(), parseValue(parameter.getKey(), parameter.getValue()))) {
+							unknown += parameter.getKey()+"\r\n";
+						}
+					}
+				}
+				if (unknown.length()>0) {
+					response.status = Response.STATUS_PARAMETER_NOT_UNDERSTOOD;
+					response.attributes += "Content-Type: text/parameters\r\n";
+					response.content = unknown;
+				} else {
+					response.status = Response.STATUS_OK;
+				}
+			}
+
 			/* ********************************************************************************** */
 			/* ********************************* Unknown method ? ******************************* */
 			/* ********************************************************************************** */
@@ -565,45 +1192,302 @@ public class RtspServer extends Service {
 
 		}
 
+		private VideoStream getVideoStream() {
+			Session session = mSession;
+			if (session != null && session.trackExists(1) && session.getTrack(1) instanceof VideoStream) {
+				return (VideoStream) session.getTrack(1);
+			}
+			return null;
+		}
+
+		/** 
+		 * Parses a text/parameters body, one parameter per line: "name: value" for SET_PARAMETER 
+		 * and "name" for GET_PARAMETER. Names are not case sensitive.
+		 */
+		private LinkedHashMap<String,String> parseParameters(String content) {
+			LinkedHashMap<String,String> parameters = new LinkedHashMap<String,String>();
+			for (String line : content.split("\r?\n")) {
+				line = line.trim();
+				if (line.length() == 0) continue;
+				int i = line.indexOf(':');
+				String name = (i<0 ? line : line.substring(0, i)).trim().toLowerCase(Locale.US);
+				parameters.put(name, i<0 ? "" : line.substring(i+1).trim());
+			}
+			return parameters;
+		}
+
+		/**
+		 * Returns the value of a parameter of the video track: "bitrate" in kbps, "framerate" 
+		 * in fps and "keyframe_interval" in ms (0 if the encoder decides alone).
+		 * @return null if the parameter is unknown
+		 */
+		private String getParameter(VideoStream video, String name) {
+			if (name.equals(PARAMETER_BITRATE)) return String.valueOf(video.getEncoderBitrate()/1000);
+			if (name.equals(PARAMETER_FRAMERATE)) return String.valueOf(video.getFramerate());
+			if (name.equals(PARAMETER_KEY_FRAME_INTERVAL)) return String.valueOf(video.getKeyFrameInterval());
+			return null;
+		}
+
+		/** Returns the value of a parameter to set, -1 if the parameter is unknown or the value is not valid. */
+		private int parseValue(String name, String value) {
+			int v;
+			try {
+				v = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+			if (name.equals(PARAMETER_BITRATE) || name.equals(PARAMETER_FRAMERATE)) return v>0 ? v : -1;
+			if (name.equals(PARAMETER_KEY_FRAME_INTERVAL)) return v>=0 ? v : -1;
+			return -1;
+		}
+
+		/**
+		 * The bitrate and the sync frame interval are changed with MediaCodec.setParameters(), 
+		 * the frame rate with the preview fps range of the camera, the stream keeps running.
+		 * @return False if the encoder or the camera can't change it live
+		 */
+		private boolean setParameter(VideoStream video, String name, int value) {
+			if (name.equals(PARAMETER_BITRATE)) return video.setEncoderBitrate(value*1000);
+			if (name.equals(PARAMETER_FRAMERATE)) return video.setFramerate(value);
+			if (name.equals(PARAMETER_KEY_FRAME_INTERVAL)) return video.setKeyFrameInterval(value);
+			return false;
+		}
+
+		/** Asks the encoder of the video track for a key frame, so that the client does not wait for the next one. */
+		private void requestKeyFrame() {
+			VideoStream video = getVideoStream();
+			if (video != null) video.requestKeyFrame();
+		}
+
+		/** Returns the destination receiving the track for this client, null if none. Called with mSharedSessions held. */
+		private RtpDestination getReceiver(MediaStream stream) {
+			// The destination of a multicast group is not paused by its members
+			if (mGroup != null) return null;
+			if (mShared) return findDestination(stream);
+			return stream.getPacketizer().getRtpSocket().getPrimaryDestination();
+		}
+
+		private RtpDestination findDestination(MediaStream stream) {
+			for (Map.Entry<RtpDestination,MediaStream> entry : mDestinations.entrySet()) {
+				if (entry.getValue() == stream) return entry.getKey();
+			}
+			return null;
+		}
+
+		/** 
+		 * Stops sending the session to the client. The session is only stopped and 
+		 * released once no client receives it anymore. The lock is only held for the bookkeeping, 
+		 * PAUSE takes it on the thread of the selector.
+		 * Called on TEARDOWN and again when the client disconnects, only the first call does something.
+		 */
+		private void detach() {
+			Session session;
+			boolean stop;
+			synchronized (mSharedSessions) {
+				session = mSession;
+				if (session == null) return;
+				mSession = null;
+				for (Map.Entry<RtpDestination,MediaStream> entry : mDestinations.entrySet()) {
+					entry.getValue().removeDestination(entry.getKey());
+				}
+				mDestinations.clear();
+				mReceivers.clear();
+				if (mGroup != null) {
+					MulticastGroup group = mGroup;
+					mGroup = null;
+					// The last member of a multicast group stops it
+					if (!group.members.remove(this) || !group.members.isEmpty()) return;
+					mMulticastGroups.values().remove(group);
+				}
+				if (!mShared) {
+					for (int id=0;id<2;id++) {
+						if (!session.trackExists(id)) continue;
+						MediaStream stream = (MediaStream) session.getTrack(id);
+						RtpDestination primary = stream.getPacketizer().getRtpSocket().getPrimaryDestination();
+						if (primary != null) stream.removeDestination(primary);
+					}
+				}
+				// No other client can find the session once it is out of the map
+				stop = !hasReceivers(session);
+				if (stop) mSharedSessions.values().remove(session);
+			}
+			if (stop) {
+				session.syncStop();
+				session.release();
+			}
+		}
+
 	}
 
 	static class Request {
 
-		// Parse method & uri
-		public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
-		// Parse a request header
-		public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+		// Parse the track of a SETUP request
+		public static final Pattern regexTrackId = Pattern.compile("trackID=(\\w+)",Pattern.CASE_INSENSITIVE);
+		// Parse the ports of the client in the Transport header of a SETUP request
+		public static final Pattern regexClientPort = Pattern.compile("client_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE);
+
+		// The request line and the headers are ISO-8859-1, the content is UTF-8
+		private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+		private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+		// Methods and headers names are looked up in these tables, so that the usual ones are not allocated
+		private static final String[] METHODS = {"OPTIONS","DESCRIBE","SETUP","PLAY","PAUSE","TEARDOWN",
+			"GET_PARAMETER","SET_PARAMETER","ANNOUNCE","RECORD","REDIRECT"};
+		private static final String[] HEADERS = {"cseq","session","transport","user-agent","accept",
+			"content-length","content-type","range","require","authorization","bandwidth","scale","speed"};
+
+		private static final byte[] RTSP_VERSION = "RTSP/".getBytes(ISO_8859_1);
+		private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(ISO_8859_1);
+
+		// Larger contents are never accepted anyway
+		private static final int MAX_CONTENT_LENGTH = 1<<20;
 
 		public String method;
 		public String uri;
+		public String content = "";
 		public HashMap<String,String> headers = new HashMap<String,String>();
 
-		/** Parse the method, uri & headers of a RTSP request */
-		public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
+		/**
+		 * Finds the end of the first request in the buffer, without consuming it. A request 
+		 * ends with an empty line, followed by as many bytes as its Content-Length header says.
+		 * Empty lines before the request are part of it.
+		 * @return The length of the request, 0 if it is not complete yet
+		 */
+		public static int frame(ByteBuffer buffer) {
+			byte[] data = buffer.array();
+			int start = buffer.arrayOffset()+buffer.position(), end = buffer.arrayOffset()+buffer.limit();
+			int line = start, content = 0;
+			while (line<end && (data[line] == '\r' || data[line] == '\n')) line++;
+			for (int i=line;i<end;i++) {
+				if (data[i] != '\n') continue;
+				int last = i>line && data[i-1] == '\r' ? i-1 : i;
+				if (last == line) {
+					// The headers end with an empty line
+					return i+1+content<=end ? i+1+content-start : 0;
+				}
+				if (startsWith(data, line, last, CONTENT_LENGTH)) {
+					content = parseInt(data, line+CONTENT_LENGTH.length, last);
+					if (content<0) content = MAX_CONTENT_LENGTH;
+				}
+				line = i+1;
+			}
+			return 0;
+		}
+
+		/** 
+		 * Parses the method, uri, headers & content of a RTSP request. Folded headers are 
+		 * joined and the names of the headers are lower case.
+		 * @param data The request, as framed by {@link #frame(ByteBuffer)}
+		 * @throws IllegalArgumentException If the request is not valid
+		 */
+		public static Request parse(byte[] data, int offset, int length) throws IllegalArgumentException {
 			Request request = new Request();
-			String line;
-			Matcher matcher;
+			int end = offset+length, i = offset;
+			while (i<end && (data[i] == '\r' || data[i] == '\n')) i++;
 
 			// Parsing request method & uri
-			if ((line = input.readLine())==null) throw new SocketException("Client disconnected");
-			matcher = regexMethod.matcher(line);
-			matcher.find();
-			request.method = matcher.group(1);
-			request.uri = matcher.group(2);
+			int eol = endOfLine(data, i, end), last = trimEnd(data, i, eol);
+			int sp1 = indexOf(data, i, last, (byte)' ');
+			int sp2 = sp1<0 ? -1 : indexOf(data, sp1+1, last, (byte)' ');
+			if (sp1<=i || sp2<=sp1+1 || !startsWith(data, sp2+1, last, RTSP_VERSION)) {
+				throw new IllegalArgumentException("Invalid request line");
+			}
+			request.method = lookup(METHODS, data, i, sp1, false);
+			request.uri = new String(data, sp1+1, sp2-sp1-1, ISO_8859_1);
 
 			// Parsing headers of the request
-			while ( (line = input.readLine()) != null && line.length()>3 ) {
-				matcher = rexegHeader.matcher(line);
-				matcher.find();
-				request.headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+			String name = null;
+			for (i=eol+1;i<end;i=eol+1) {
+				eol = endOfLine(data, i, end);
+				last = trimEnd(data, i, eol);
+				if (last == i) {
+					i = eol+1;
+					break;
+				}
+				if (data[i] == ' ' || data[i] == '\t') {
+					// The line continues the value of the previous header
+					if (name == null) throw new IllegalArgumentException("Invalid header");
+					request.headers.put(name, request.headers.get(name)+" "+value(data, i, last));
+				} else {
+					int colon = indexOf(data, i, last, (byte)':');
+					if (colon<=i) throw new IllegalArgumentException("Invalid header");
+					name = lookup(HEADERS, data, i, colon, true);
+					request.headers.put(name, value(data, colon+1, last));
+				}
 			}
-			if (line==null) throw new SocketException("Client disconnected");
+			if (i<end) request.content = new String(data, i, end-i, UTF_8);
 
 			// ⲻһ
 			Log.e(TAG,request.method+" "+request.uri);
 
 			return request;
 		}
+
+		/** Returns the index of the '\n' ending the line, or the end of the data. */
+		private static int endOfLine(byte[] data, int from, int end) {
+			while (from<end && data[from] != '\n') from++;
+			return from;
+		}
+
+		/** Returns the end of the line without its trailing whitespaces. */
+		private static int trimEnd(byte[] data, int from, int end) {
+			while (end>from && (data[end-1] == '\r' || data[end-1] == ' ' || data[end-1] == '\t')) end--;
+			return end;
+		}
+
+		private static int indexOf(byte[] data, int from, int end, byte b) {
+			for (int i=from;i<end;i++) {
+				if (data[i] == b) return i;
+			}
+			return -1;
+		}
+
+		/** Compares ASCII bytes, ignoring the case. */
+		private static boolean startsWith(byte[] data, int from, int end, byte[] prefix) {
+			if (end-from<prefix.length) return false;
+			for (int i=0;i<prefix.length;i++) {
+				if (toLowerCase(data[from+i]) != toLowerCase(prefix[i])) return false;
+			}
+			return true;
+		}
+
+		private static byte toLowerCase(byte b) {
+			return b>='A' && b<='Z' ? (byte) (b+32) : b;
+		}
+
+		/** Parses a positive integer after optional spaces, returns -1 if there is none or if it is too large. */
+		private static int parseInt(byte[] data, int from, int end) {
+			while (from<end && (data[from] == ' ' || data[from] == '\t')) from++;
+			if (from == end) return -1;
+			int n = 0;
+			for (int i=from;i<end;i++) {
+				if (data[i]<'0' || data[i]>'9' || n>MAX_CONTENT_LENGTH) return -1;
+				n = n*10+data[i]-'0';
+			}
+			return n;
+		}
+
+		private static String value(byte[] data, int from, int end) {
+			while (from<end && (data[from] == ' ' || data[from] == '\t')) from++;
+			return new String(data, from, end-from, ISO_8859_1);
+		}
+
+		/** 
+		 * Returns the string of the table equal to the bytes, or a new string if there is none.
+		 * @param lowerCase True if the bytes are compared ignoring the case and the new string is lower case
+		 */
+		private static String lookup(String[] table, byte[] data, int from, int end, boolean lowerCase) {
+			int length = end-from;
+			for (String s : table) {
+				if (s.length() != length) continue;
+				int i = 0;
+				while (i<length && s.charAt(i) == (lowerCase ? toLowerCase(data[from+i]) : data[from+i])) i++;
+				if (i == length) return s;
+			}
+			String s = new String(data, from, length, ISO_8859_1);
+			return lowerCase ? s.toLowerCase(Locale.US) : s;
+		}
+
 	}
 
 	static class Response {
@@ -612,7 +1496,22 @@ public class RtspServer extends Service {
 		public static final String STATUS_OK = "200 OK";
 		public static final String STATUS_BAD_REQUEST = "400 Bad Request";
 		public static final String STATUS_NOT_FOUND = "404 Not Found";
+		public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
+		public static final String STATUS_PARAMETER_NOT_UNDERSTOOD = "451 Parameter Not Understood";
+		public static final String STATUS_NOT_ENOUGH_BANDWIDTH = "453 Not Enough Bandwidth";
+		public static final String STATUS_METHOD_NOT_VALID = "455 Method Not Valid in This State";
 		public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
+		public static final String STATUS_SERVICE_UNAVAILABLE = "503 Service Unavailable";
+
+		private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+		private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+		private static final byte[] CSEQ = "Cseq: ".getBytes(ISO_8859_1);
+		private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(ISO_8859_1);
+
+		// The status line and the Server header, encoded once for each status
+		private static final HashMap<String,byte[]> sHeads = new HashMap<String,byte[]>();
+		private static String sServerName = SERVER_NAME;
 
 		public String status = STATUS_INTERNAL_SERVER_ERROR;
 		public String content = "";
@@ -629,26 +1528,87 @@ public class RtspServer extends Service {
 			mRequest = null;
 		}
 
-		public void send(OutputStream output) throws IOException {
-			int seqid = -1;
+		public byte[] getBytes() {
+			String cseq = mRequest != null ? mRequest.headers.get("cseq") : null;
+			if (cseq != null && !isNumber(cseq)) {
+				Log.e(TAG,"Error parsing CSeq: "+cseq);
+				cseq = null;
+			}
 
-			try {
-				seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ",""));
-			} catch (Exception e) {
-				Log.e(TAG,"Error parsing CSeq: "+(e.getMessage()!=null?e.getMessage():""));
+			// The content is UTF-8, it usually is plain ASCII (SDP) and is copied as is
+			byte[] body = isAscii(content) ? null : content.getBytes(UTF_8);
+			int contentLength = body != null ? body.length : content.length();
+			String digits = Integer.toString(contentLength);
+
+			byte[] head = head(status);
+			byte[] response = new byte[head.length + (cseq != null ? CSEQ.length+cseq.length()+2 : 0) +
+			                           CONTENT_LENGTH.length + digits.length() + 2 + attributes.length() + 2 + contentLength];
+			int o = 0;
+			System.arraycopy(head, 0, response, 0, head.length);
+			o += head.length;
+			if (cseq != null) {
+				o = put(response, o, CSEQ);
+				o = put(response, o, cseq);
+				o = putCrlf(response, o);
 			}
+			o = put(response, o, CONTENT_LENGTH);
+			o = put(response, o, digits);
+			o = putCrlf(response, o);
+			o = put(response, o, attributes);
+			o = putCrlf(response, o);
+			if (body != null) System.arraycopy(body, 0, response, o, body.length);
+			else put(response, o, content);
 
-			String response = 	"RTSP/1.0 "+status+"\r\n" +
-					"Server: "+SERVER_NAME+"\r\n" +
-					(seqid>=0?("Cseq: " + seqid + "\r\n"):"") +
-					"Content-Length: " + content.length() + "\r\n" +
-					attributes +
-					"\r\n" + 
-					content;
+			Log.d(TAG,"RTSP/1.0 "+status+(cseq != null ? " (Cseq: "+cseq+")" : ""));
 
-			Log.d(TAG,response.replace("\r", ""));
+			return response;
+		}
+
+		/** Returns the status line and the Server header. */
+		private static synchronized byte[] head(String status) {
+			if (sServerName != SERVER_NAME) {
+				// The name of the server changed
+				sHeads.clear();
+				sServerName = SERVER_NAME;
+			}
+			byte[] head = sHeads.get(status);
+			if (head == null) {
+				head = ("RTSP/1.0 "+status+"\r\n"+"Server: "+sServerName+"\r\n").getBytes(UTF_8);
+				sHeads.put(status, head);
+			}
+			return head;
+		}
+
+		private static boolean isNumber(String s) {
+			if (s.length() == 0) return false;
+			for (int i=0;i<s.length();i++) {
+				if (s.charAt(i)<'0' || s.charAt(i)>'9') return false;
+			}
+			return true;
+		}
+
+		private static boolean isAscii(String s) {
+			for (int i=0;i<s.length();i++) {
+				if (s.charAt(i)>=0x80) return false;
+			}
+			return true;
+		}
+
+		private static int put(byte[] buffer, int offset, byte[] bytes) {
+			System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+			return offset+bytes.length;
+		}
+
+		/** Copies the chars of an ASCII string. */
+		private static int put(byte[] buffer, int offset, String s) {
+			for (int i=0;i<s.length();i++) buffer[offset++] = (byte) s.charAt(i);
+			return offset;
+		}
 
-			output.write(response.getBytes());
+		private static int putCrlf(byte[] buffer, int offset) {
+			buffer[offset++] = '\r';
+			buffer[offset++] = '\n';
+			return offset;
 		}
 	}
 
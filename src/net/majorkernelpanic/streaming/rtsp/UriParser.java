@@ -38,6 +38,9 @@ import net.majorkernelpanic.streaming.MediaStream;
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.audio.AudioQuality;
+import net.majorkernelpanic.streaming.rtp.GopCache;
+import net.majorkernelpanic.streaming.rtp.PacketRing;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 
 import org.apache.http.NameValuePair;
@@ -158,6 +161,114 @@ public class UriParser {
 					}
 				}
 
+				// FEC -> Overhead of the forward error correction in percents, fec=10 sends one FEC packet every ten packets
+				else if (param.getName().equalsIgnoreCase("fec")) {
+					if (param.getValue()!=null) {
+						try {
+							int fec = Integer.parseInt(param.getValue());
+							if (fec<0 || fec>100) throw new IllegalStateException();
+							builder.setFecOverhead(fec/100d);
+						} catch (Exception e) {
+							throw new IllegalStateException("The FEC overhead must be between 0 and 100 !");
+						}
+					}
+				}
+
+				// MTU -> MTU of the path to the client, mtu=1400 or mtu=probe
+				else if (param.getName().equalsIgnoreCase("mtu")) {
+					if (param.getValue()!=null) {
+						if (param.getValue().equalsIgnoreCase("probe")) {
+							builder.setMtu(Session.MTU_PROBE);
+						} else {
+							try {
+								int mtu = Integer.parseInt(param.getValue());
+								if (mtu<RtpSocket.MIN_MTU || mtu>RtpSocket.MAX_MTU) throw new IllegalStateException();
+								builder.setMtu(mtu);
+							} catch (Exception e) {
+								throw new IllegalStateException("The MTU must be between "+RtpSocket.MIN_MTU+" and "+RtpSocket.MAX_MTU+" !");
+							}
+						}
+					}
+				}
+
+				// TRANSPORT -> API used to send the packets, transport=socket or transport=channel, multicast is always sent with a socket
+				else if (param.getName().equalsIgnoreCase("transport")) {
+					if (param.getValue()!=null) {
+						if (param.getValue().equalsIgnoreCase("channel")) {
+							builder.setTransport(RtpSocket.TRANSPORT_CHANNEL);
+						} else if (param.getValue().equalsIgnoreCase("socket")) {
+							builder.setTransport(RtpSocket.TRANSPORT_SOCKET);
+						}
+					}
+				}
+
+				// BURST -> Maximum number of packets sent in a row by the sender thread, burst=0 only bounds the bursts in time
+				else if (param.getName().equalsIgnoreCase("burst")) {
+					if (param.getValue()!=null) {
+						try {
+							int burst = Integer.parseInt(param.getValue());
+							if (burst<0) throw new IllegalStateException();
+							builder.setBurstSize(burst);
+						} catch (Exception e) {
+							throw new IllegalStateException("The burst size must be a positive integer !");
+						}
+					}
+				}
+
+				// WAIT -> How the packetizer waits for the sender when its FIFO is full, wait=spin or wait=park
+				else if (param.getName().equalsIgnoreCase("wait")) {
+					if (param.getValue()!=null) {
+						if (param.getValue().equalsIgnoreCase("spin")) {
+							builder.setWaitStrategy(PacketRing.WaitStrategy.DEFAULT);
+						} else if (param.getValue().equalsIgnoreCase("park")) {
+							builder.setWaitStrategy(PacketRing.WaitStrategy.PARK);
+						}
+					}
+				}
+
+				// GOP -> Cap of the cache of the group of pictures replayed to the viewers that join in kB, gop=0 disables it
+				else if (param.getName().equalsIgnoreCase("gop")) {
+					if (param.getValue()!=null) {
+						try {
+							// Bounded before the conversion, so that it can't overflow
+							long size = Long.parseLong(param.getValue());
+							if (size<0 || size>GopCache.MAX_SIZE/1024) throw new IllegalStateException();
+							builder.setGopCacheSize((int) size*1024);
+						} catch (Exception e) {
+							throw new IllegalStateException("The size of the cache must be between 0 and "+GopCache.MAX_SIZE/1024+" kB !");
+						}
+					}
+				}
+
+				// REPLAYRATE -> Rate of the replay of the cached group of pictures in kbps
+				else if (param.getName().equalsIgnoreCase("replayrate")) {
+					if (param.getValue()!=null) {
+						try {
+							long bitrate = Long.parseLong(param.getValue());
+							if (bitrate<=0 || bitrate>RtpSocket.MAX_REPLAY_RATE/1000) throw new IllegalStateException();
+							builder.setReplayRate((int) bitrate*1000);
+						} catch (Exception e) {
+							throw new IllegalStateException("The replay rate must be between 1 and "+RtpSocket.MAX_REPLAY_RATE/1000+" kbps !");
+						}
+					}
+				}
+
+				// MINBITRATE, MAXBITRATE -> Bounds of the congestion control of the video stream in kbps
+				else if (param.getName().equalsIgnoreCase("minbitrate") || param.getName().equalsIgnoreCase("maxbitrate")) {
+					if (param.getValue()!=null) {
+						try {
+							int bitrate = Integer.parseInt(param.getValue())*1000;
+							if (bitrate<=0) throw new IllegalStateException();
+							if (param.getName().equalsIgnoreCase("minbitrate")) 
+								builder.setVideoBitrateRange(bitrate, builder.getMaxVideoBitrate());
+							else
+								builder.setVideoBitrateRange(builder.getMinVideoBitrate(), bitrate);
+						} catch (Exception e) {
+							throw new IllegalStateException("The bitrate must be a positive integer !");
+						}
+					}
+				}
+
 				// H.264
 				else if (param.getName().equalsIgnoreCase("h264")) {
 					VideoQuality quality = VideoQuality.parseQuality(param.getValue());
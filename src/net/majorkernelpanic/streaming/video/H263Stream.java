@@ -80,7 +80,10 @@ public class H263Stream extends VideoStream {
 	 */
 	public String getSessionDescription() {
 		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
-				"a=rtpmap:96 H263-1998/90000\r\n";
+				"a=rtpmap:96 H263-1998/90000\r\n" +
+				"a=rtcp-fb:96 nack\r\n" +
+				"a=rtcp-fb:96 nack pli\r\n" +
+				"a=rtcp-fb:96 ccm fir\r\n";
 	}
 
 }
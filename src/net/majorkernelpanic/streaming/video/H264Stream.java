@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import net.majorkernelpanic.streaming.ConfigCache;
 import net.majorkernelpanic.streaming.SessionBuilder;
 import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
@@ -55,6 +56,18 @@ public class H264Stream extends VideoStream {
 	private Semaphore mLock = new Semaphore(0);
 	private MP4Config mConfig;
 
+	/** What {@link #configure()} finds for a given key, see {@link ConfigCache}. */
+	private static class Configuration {
+		final MP4Config config;
+		final byte mode;
+		final VideoQuality quality;
+		Configuration(MP4Config config, byte mode, VideoQuality quality) {
+			this.config = config;
+			this.mode = mode;
+			this.quality = quality;
+		}
+	}
+
 	/**
 	 * Constructs the H.264 stream.
 	 * Uses CAMERA_FACING_BACK by default.
@@ -83,7 +96,10 @@ public class H264Stream extends VideoStream {
 		if (mConfig == null) throw new IllegalStateException("You need to call configure() first !");
 		return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 		"a=rtpmap:96 H264/90000\r\n" +
-		"a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n";
+		"a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n" +
+		"a=rtcp-fb:96 nack\r\n" +
+		"a=rtcp-fb:96 nack pli\r\n" +
+		"a=rtcp-fb:96 ccm fir\r\n";
 	}	
 
 	/**
@@ -96,7 +112,16 @@ public class H264Stream extends VideoStream {
 			byte[] pps = Base64.decode(mConfig.getB64PPS(), Base64.NO_WRAP);
 			byte[] sps = Base64.decode(mConfig.getB64SPS(), Base64.NO_WRAP);
 			((H264Packetizer)mPacketizer).setStreamParameters(pps, sps);
-			super.start();
+			try {
+				super.start();
+			} catch (IOException e) {
+				// The encoder may not behave as when it was tested anymore
+				ConfigCache.invalidate(getConfigKey());
+				throw e;
+			} catch (RuntimeException e) {
+				ConfigCache.invalidate(getConfigKey());
+				throw e;
+			}
 		}
 	}
 
@@ -108,7 +133,22 @@ public class H264Stream extends VideoStream {
 		super.configure();
 		mMode = mRequestedMode;
 		mQuality = mRequestedQuality.clone();
-		mConfig = testH264();
+		Configuration configuration = ConfigCache.get(getConfigKey(), new ConfigCache.Loader<Configuration>() {
+			@Override
+			public Configuration load() throws IOException {
+				MP4Config config = testH264();
+				return new Configuration(config, mMode, mQuality.clone());
+			}
+		});
+		mConfig = configuration.config;
+		mMode = configuration.mode;
+		mQuality = configuration.quality.clone();
+	}
+
+	/** The configuration depends on the camera, the requested mode and the requested quality. */
+	private String getConfigKey() {
+		return "h264-"+mCameraId+"-"+mRequestedMode+"-"+mRequestedQuality.resX+"x"+mRequestedQuality.resY+
+				"-"+mRequestedQuality.framerate+"-"+mRequestedQuality.bitrate;
 	}
 	
 	/** 
@@ -138,5 +138,29 @@ public class VideoQuality {
 		Log.v(TAG,supportedFpsRangesStr);
 		return maxFps;
 	}
+
+	/**
+	 * Returns the preview fps range of the camera that best fits a frame rate: the narrowest
+	 * range containing it, or the range whose upper bound is the closest if none does.
+	 * @param framerate The frame rate in fps
+	 */
+	public static int[] determineClosestFramerateRange(Camera.Parameters parameters, int framerate) {
+		int fps = framerate*1000;
+		int[] best = null;
+		for (int[] interval : parameters.getSupportedPreviewFpsRange()) {
+			if (best == null) {
+				best = interval;
+				continue;
+			}
+			boolean contains = interval[0]<=fps && fps<=interval[1], bestContains = best[0]<=fps && fps<=best[1];
+			if (contains && (!bestContains || interval[1]-interval[0]<best[1]-best[0] || 
+					(interval[1]-interval[0]==best[1]-best[0] && interval[1]<best[1]))) {
+				best = interval;
+			} else if (!contains && !bestContains && Math.abs(interval[1]-fps)<Math.abs(best[1]-fps)) {
+				best = interval;
+			}
+		}
+		return best;
+	}
 	
 }
@@ -34,7 +34,12 @@ import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.hw.EncoderDebugger;
 import net.majorkernelpanic.streaming.hw.NV21Convertor;
+import net.majorkernelpanic.streaming.rtcp.BandwidthEstimator;
+import net.majorkernelpanic.streaming.rtcp.CongestionController;
+import net.majorkernelpanic.streaming.rtcp.GccEstimator;
 import net.majorkernelpanic.streaming.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.streaming.rtp.MediaExecutor;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -45,7 +50,10 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -81,6 +89,20 @@ public abstract class VideoStream extends MediaStream {
 	protected int mCameraImageFormat;
 	protected int mMaxFps = 0;	
 
+	protected int mMinBitrate = 0, mMaxBitrate = 0;
+	protected BandwidthEstimator mEstimator = null;
+
+	/** Sync frames are not requested more often than that, in milliseconds. */
+	public static final int MIN_KEY_FRAME_INTERVAL = 1000;
+
+	private final Object mKeyFrameLock = new Object();
+	private long mLastKeyFrame = 0;
+
+	// Sync frames requested periodically, in ms, 0 if the encoder decides alone. Guarded by mKeyFrameLock
+	private int mKeyFrameInterval = 0;
+	// Incremented each time the periodic requests are restarted or stopped
+	private int mKeyFrameTimer = 0;
+
 	/** 
 	 * Ҫֱʹࡣ
 	 * ʹĬCAMERA_FACING_BACK
@@ -240,6 +262,188 @@ public abstract class VideoStream extends MediaStream {
 		return mRequestedQuality;
 	}
 
+	/**
+	 * Enables the congestion control: the bitrate of the encoder follows the feedback sent by 
+	 * the receivers in their RTCP reports. Only works with the MediaCodec API on Android 4.4 and up.
+	 * Changes will be taken into account the next time the stream is started.
+	 * @param min The lowest bitrate in bit per second, 0 for a tenth of max
+	 * @param max The highest bitrate in bit per second, 0 to disable the congestion control
+	 */
+	public void setBitrateRange(int min, int max) {
+		mMinBitrate = min;
+		mMaxBitrate = max;
+	}
+
+	/** 
+	 * Sets the estimator used by the congestion control, a {@link GccEstimator} is used by default. 
+	 * @see #setBitrateRange(int, int)
+	 */
+	public void setBandwidthEstimator(BandwidthEstimator estimator) {
+		mEstimator = estimator;
+	}
+
+	/**
+	 * Changes the target bitrate of the encoder while streaming, without restarting it.
+	 * Only works with the MediaCodec API on Android 4.4 and up.
+	 * @param bitrate The bitrate in bit per second
+	 * @return False if the bitrate could not be changed
+	 */
+	@SuppressLint("NewApi")
+	public boolean setEncoderBitrate(int bitrate) {
+		MediaCodec codec = mMediaCodec;
+		if (mMode == MODE_MEDIARECORDER_API || codec == null || Build.VERSION.SDK_INT<19) return false;
+		try {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+			codec.setParameters(params);
+			mQuality.bitrate = bitrate;
+			return true;
+		} catch (IllegalStateException e) {
+			// The encoder was stopped in the meantime
+			return false;
+		}
+	}
+
+	/**
+	 * Asks the encoder for a sync frame, so that a new receiver can start decoding right away.
+	 * Requests are rate limited to one every {@link #MIN_KEY_FRAME_INTERVAL} ms, so that a 
+	 * receiver asking again and again does not flood the link with key frames.
+	 * Only works with the MediaCodec API on Android 4.4 and up.
+	 * @return False if the encoder can't be asked for a sync frame
+	 */
+	@SuppressLint("NewApi")
+	public boolean requestKeyFrame() {
+		MediaCodec codec = mMediaCodec;
+		if (mMode == MODE_MEDIARECORDER_API || codec == null || Build.VERSION.SDK_INT<19) return false;
+		synchronized (mKeyFrameLock) {
+			long now = SystemClock.elapsedRealtime();
+			// A sync frame is already on its way
+			if (now-mLastKeyFrame<MIN_KEY_FRAME_INTERVAL) return true;
+			mLastKeyFrame = now;
+		}
+		try {
+			Bundle params = new Bundle();
+			params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+			codec.setParameters(params);
+			Log.d(TAG,"Sync frame requested");
+			return true;
+		} catch (IllegalStateException e) {
+			// The encoder was stopped in the meantime
+			return false;
+		}
+	}
+
+	/**
+	 * Sets how often the stream sends a sync frame, can be called while streaming.
+	 * The interval is given to the encoder when the stream starts, and enforced while streaming 
+	 * by asking the encoder for sync frames: so a running stream can only make it shorter.
+	 * Only works with the MediaCodec API on Android 4.4 and up.
+	 * @param interval The interval in milliseconds, at least {@link #MIN_KEY_FRAME_INTERVAL}, 0 to let the encoder decide
+	 * @return False if the interval can't be enforced
+	 */
+	public boolean setKeyFrameInterval(int interval) {
+		if (mMode == MODE_MEDIARECORDER_API || Build.VERSION.SDK_INT<19) return false;
+		synchronized (mKeyFrameLock) {
+			mKeyFrameInterval = interval>0 ? Math.max(interval, MIN_KEY_FRAME_INTERVAL) : 0;
+			int timer = ++mKeyFrameTimer;
+			if (mKeyFrameInterval>0 && mStreaming) scheduleKeyFrame(timer);
+		}
+		return true;
+	}
+
+	/** Returns the interval between the sync frames requested by the stream in milliseconds, 0 if the encoder decides alone. */
+	public int getKeyFrameInterval() {
+		synchronized (mKeyFrameLock) {
+			return mKeyFrameInterval;
+		}
+	}
+
+	/** Returns the interval between sync frames to give to the encoder, in seconds. */
+	protected int getEncoderKeyFrameInterval() {
+		synchronized (mKeyFrameLock) {
+			return mKeyFrameInterval>0 ? Math.max(1, mKeyFrameInterval/1000) : 1;
+		}
+	}
+
+	/** Requests a sync frame once the interval has elapsed, then again, until the timer changes. Called with mKeyFrameLock held. */
+	private void scheduleKeyFrame(final int timer) {
+		MediaExecutor.getInstance().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (mKeyFrameLock) {
+					if (timer != mKeyFrameTimer) return;
+					scheduleKeyFrame(timer);
+				}
+				requestKeyFrame();
+			}
+		}, mKeyFrameInterval*1000000L);
+	}
+
+	/** 
+	 * The RTCP PLI and FIR sent by the receivers ask the encoder for a sync frame, 
+	 * and so does the stream itself if a sync frame interval was set.
+	 */
+	protected void startKeyFrameRequests() {
+		mPacketizer.getRtpSocket().setKeyFrameListener(new RtpSocket.KeyFrameListener() {
+			@Override
+			public void onKeyFrameRequest() {
+				requestKeyFrame();
+			}
+		});
+		synchronized (mKeyFrameLock) {
+			int timer = ++mKeyFrameTimer;
+			if (mKeyFrameInterval>0) scheduleKeyFrame(timer);
+		}
+	}
+
+	/**
+	 * Changes the frame rate while streaming, without restarting the stream: the preview fps
+	 * range of the camera is set to the one that fits the frame rate best. 
+	 * Does not work with the MediaRecorder API, which holds the camera while streaming.
+	 * @param framerate The frame rate in fps
+	 * @return False if the frame rate could not be changed
+	 */
+	public synchronized boolean setFramerate(int framerate) {
+		if (mMode == MODE_MEDIARECORDER_API || mCamera == null || mUnlocked || framerate<=0) return false;
+		try {
+			Parameters parameters = mCamera.getParameters();
+			int[] range = VideoQuality.determineClosestFramerateRange(parameters, framerate);
+			if (range == null) return false;
+			parameters.setPreviewFpsRange(range[0], range[1]);
+			mCamera.setParameters(parameters);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Frame rate not supported: "+framerate);
+			return false;
+		}
+		mQuality.framerate = framerate;
+		mPacketizer.setFrameRate(framerate);
+		return true;
+	}
+
+	/** Returns the frame rate the stream is encoded at, in fps. */
+	public int getFramerate() {
+		return mQuality.framerate;
+	}
+
+	/** Returns the bitrate targeted by the encoder, in bit per second. */
+	public int getEncoderBitrate() {
+		return mQuality.bitrate;
+	}
+
+	/** Lets the reports of the receivers drive the bitrate of the encoder. */
+	protected void startCongestionControl() {
+		if (mMaxBitrate<=0 || Build.VERSION.SDK_INT<19) return;
+		BandwidthEstimator estimator = mEstimator != null ? mEstimator : new GccEstimator();
+		int min = mMinBitrate>0 ? mMinBitrate : mMaxBitrate/10;
+		mPacketizer.getRtpSocket().setCongestionController(new CongestionController(estimator, mQuality.bitrate, min, mMaxBitrate, 
+				new CongestionController.Callback() {
+					@Override
+					public void onTargetBitrate(int bitrate) {
+						setEncoderBitrate(bitrate);
+					}
+				}));
+	}
+
 	/**
 	 * {@link #getSessionDescription()}ʱһЩҪ洢(SPSPPS )
 	 * @param prefs ʹSharedPreferencesSPSPPS
@@ -268,6 +472,11 @@ public abstract class VideoStream extends MediaStream {
 
 	/**  */
 	public synchronized void stop() {
+		mPacketizer.getRtpSocket().setCongestionController(null);
+		mPacketizer.getRtpSocket().setKeyFrameListener(null);
+		synchronized (mKeyFrameLock) {
+			mKeyFrameTimer++;
+		}
 		if (mCamera != null) {
 			if (mMode == MODE_MEDIACODEC_API) {
 				mCamera.setPreviewCallbackWithBuffer(null);
@@ -378,6 +587,7 @@ public abstract class VideoStream extends MediaStream {
 		// ֳɰװһRTPλ,ͨ緢͡
 		mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 		mPacketizer.setInputStream(mReceiver.getInputStream());
+		mPacketizer.setFrameRate(mQuality.framerate);
 		mPacketizer.start();
 
 		mStreaming = true;
@@ -432,7 +642,7 @@ public abstract class VideoStream extends MediaStream {
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,debugger.getEncoderColorFormat());
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getEncoderKeyFrameInterval());
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		mMediaCodec.start();
 
@@ -469,6 +679,8 @@ public abstract class VideoStream extends MediaStream {
 		mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
 		mPacketizer.start();
+		startCongestionControl();
+		startKeyFrameRequests();
 
 		mStreaming = true;
 
@@ -497,7 +709,7 @@ public abstract class VideoStream extends MediaStream {
 		mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
 		mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);	
 		mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+		mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, getEncoderKeyFrameInterval());
 		mMediaCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 		Surface surface = mMediaCodec.createInputSurface();
 		((SurfaceView)mSurfaceView).addMediaCodecSurface(surface);
@@ -507,6 +719,8 @@ public abstract class VideoStream extends MediaStream {
 		mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 		mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
 		mPacketizer.start();
+		startCongestionControl();
+		startKeyFrameRequests();
 
 		mStreaming = true;
 
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming;
+
+import junit.framework.TestCase;
+import net.majorkernelpanic.streaming.audio.AMRNBStream;
+
+/**
+ * Admits sessions that are never started, like the clients sending their DESCRIBE at the same time.
+ */
+public class ResourceGovernorTest extends TestCase {
+
+	private ResourceGovernor mGovernor;
+	private Session mFirst, mSecond;
+
+	@Override
+	protected void setUp() {
+		mGovernor = ResourceGovernor.getInstance();
+		mGovernor.setMaxCpuLoad(1);
+		mFirst = newSession();
+		mSecond = newSession();
+	}
+
+	@Override
+	protected void tearDown() {
+		mFirst.syncStop();
+		mSecond.syncStop();
+		mGovernor.setMaxEncoders(ResourceGovernor.DEFAULT_MAX_ENCODERS);
+		mGovernor.setMaxBitrate(ResourceGovernor.DEFAULT_MAX_BITRATE);
+		mGovernor.setMaxCpuLoad(ResourceGovernor.DEFAULT_MAX_CPU_LOAD);
+	}
+
+	/** The first session holds the only encoder allowed, although it is not streaming yet. */
+	public void testEncoderReserved() {
+		mGovernor.setMaxEncoders(1);
+		mGovernor.setMaxBitrate(0);
+		assertEquals(ResourceGovernor.ADMITTED, mGovernor.admit(mFirst));
+		assertEquals(ResourceGovernor.REJECTED_LOAD, mGovernor.admit(mSecond));
+	}
+
+	/** The first session holds the bitrate budget, although it is not streaming yet. */
+	public void testBitrateReserved() {
+		mGovernor.setMaxEncoders(0);
+		mGovernor.setMaxBitrate(mFirst.getAudioTrack().getAudioQuality().bitRate);
+		assertEquals(ResourceGovernor.ADMITTED, mGovernor.admit(mFirst));
+		assertEquals(ResourceGovernor.REJECTED_BANDWIDTH, mGovernor.admit(mSecond));
+	}
+
+	/** Stopping a session that never started gives its place back. */
+	public void testReservationReleased() {
+		mGovernor.setMaxEncoders(1);
+		mGovernor.setMaxBitrate(0);
+		assertEquals(ResourceGovernor.ADMITTED, mGovernor.admit(mFirst));
+		mFirst.syncStop();
+		assertEquals(0, mGovernor.getEncoderCount());
+		assertEquals(ResourceGovernor.ADMITTED, mGovernor.admit(mSecond));
+	}
+
+	/** A session admitted twice does not count against itself. */
+	public void testAdmittedAgain() {
+		mGovernor.setMaxEncoders(1);
+		mGovernor.setMaxBitrate(0);
+		assertEquals(ResourceGovernor.ADMITTED, mGovernor.admit(mFirst));
+		assertEquals(ResourceGovernor.ADMITTED, mGovernor.admit(mFirst));
+		assertEquals(1, mGovernor.getEncoderCount());
+	}
+
+	private static Session newSession() {
+		Session session = new Session();
+		session.addAudioTrack(new AMRNBStream());
+		return session;
+	}
+
+}
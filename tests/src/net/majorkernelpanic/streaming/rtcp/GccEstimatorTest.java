@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds the {@link GccEstimator} with synthetic traces of reports. 
+ * Does not depend on the Android API, it also runs on a desktop JVM.
+ */
+public class GccEstimatorTest extends TestCase {
+
+	private static final int MIN = 100000, MAX = 2000000, START = 500000;
+
+	// A report is received every 500 ms
+	private static final long PERIOD = 500;
+
+	private static final int A = 0x1234, B = 0x5678;
+
+	private GccEstimator mEstimator;
+	private long mNow;
+
+	@Override
+	protected void setUp() {
+		mEstimator = new GccEstimator();
+		mEstimator.reset(START, MIN, MAX);
+		mNow = 100000;
+	}
+
+	/** No loss and a stable delay, the estimate climbs to the highest bitrate allowed. */
+	public void testStableNetwork() {
+		for (int i=0;i<60;i++) report(A, 0, 50);
+		assertEquals(MAX, mEstimator.getEstimate());
+		assertEquals(GccEstimator.STATE_NORMAL, mEstimator.getState(A));
+	}
+
+	/** The delay grows by 100 ms every second, the estimate goes down. */
+	public void testDelayBuildUp() {
+		for (int i=0;i<10;i++) report(A, 0, 50);
+		int before = mEstimator.getEstimate();
+		for (int i=0;i<10;i++) report(A, 0, 100+100*i);
+		assertEquals(GccEstimator.STATE_OVERUSE, mEstimator.getState(A));
+		assertTrue("The estimate did not decrease: "+mEstimator.getEstimate(), mEstimator.getEstimate()<before/2);
+	}
+
+	/** 30 % of the packets are lost, the estimate goes down even though the delay is stable. */
+	public void testLoss() {
+		for (int i=0;i<5;i++) report(A, 0.3f, 50);
+		assertTrue("The estimate did not decrease: "+mEstimator.getEstimate(), mEstimator.getEstimate()<START/2);
+		for (int i=0;i<100;i++) report(A, 0.3f, 50);
+		assertEquals(MIN, mEstimator.getEstimate());
+	}
+
+	/** 
+	 * Two receivers with stable but very different round trip times: their reports are 
+	 * interleaved, the difference between them must not be taken for a delay gradient.
+	 */
+	public void testReceiversAreNotMixed() {
+		for (int i=0;i<60;i++) {
+			report(A, 0, 20);
+			report(B, 0, 400);
+		}
+		assertEquals(GccEstimator.STATE_NORMAL, mEstimator.getState(A));
+		assertEquals(GccEstimator.STATE_NORMAL, mEstimator.getState(B));
+		assertEquals(MAX, mEstimator.getEstimate());
+	}
+
+	/** The congested receiver drives the estimate, until it leaves. */
+	public void testMostConstrainedReceiver() {
+		for (int i=0;i<30;i++) {
+			report(A, 0, 20);
+			report(B, 0.3f, 50);
+		}
+		assertEquals(MIN, mEstimator.getEstimate());
+		assertTrue("The estimate did not increase", mEstimator.remove(B)>MIN);
+		for (int i=0;i<60;i++) report(A, 0, 20);
+		assertEquals(MAX, mEstimator.getEstimate());
+	}
+
+	/** A receiver that stopped reporting without a BYE does not hold the estimate down forever. */
+	public void testReceiverTimeout() {
+		for (int i=0;i<30;i++) report(B, 0.3f, 50);
+		assertEquals(MIN, mEstimator.getEstimate());
+		for (int i=0;i<GccEstimator.RECEIVER_TIMEOUT/PERIOD+100;i++) report(A, 0, 20);
+		assertEquals(MAX, mEstimator.getEstimate());
+	}
+
+	/** Sends a report of a receiver, the sender sends what the estimator allows. */
+	private void report(int ssrc, float fractionLost, long rtt) {
+		mNow += PERIOD;
+		mEstimator.update(ssrc, mNow, fractionLost, rtt, 0, mEstimator.getEstimate());
+	}
+
+}
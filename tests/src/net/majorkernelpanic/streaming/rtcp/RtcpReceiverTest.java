@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+import junit.framework.TestCase;
+
+/**
+ * Feeds the {@link RtcpReceiver} with RTCP packets built by hand, its listener drives a 
+ * {@link CongestionController} like the one of the RtpSocket.
+ */
+public class RtcpReceiverTest extends TestCase {
+
+	private static final int MIN = 100000, MAX = 2000000, START = 500000;
+
+	private static final int A = 0x1234, B = 0x5678, SOURCE = 0x4242;
+
+	private DatagramSocket mSocket;
+	private RtcpReceiver mReceiver;
+	private CongestionController mController;
+
+	@Override
+	protected void setUp() throws SocketException {
+		mSocket = new DatagramSocket();
+		mController = new CongestionController(new GccEstimator(), START, MIN, MAX, new CongestionController.Callback() {
+			@Override
+			public void onTargetBitrate(int bitrate) {}
+		});
+		mReceiver = new RtcpReceiver(mSocket, new RtcpReceiver.Listener() {
+			@Override
+			public void onNack(int ssrc, int[] sequences) {}
+			@Override
+			public void onReceptionReport(ReceptionReport report) {
+				mController.onReceptionReport(report, 0, 0);
+			}
+			@Override
+			public void onKeyFrameRequest(int ssrc) {}
+		});
+	}
+
+	@Override
+	protected void tearDown() {
+		mSocket.close();
+	}
+
+	/** A congested receiver leaves with a BYE, the bitrate follows the receiver that stays. */
+	public void testByeReleasesReceiver() {
+		for (int i=0;i<20;i++) {
+			parse(receiverReport(A, 128));
+			parse(receiverReport(B, 0));
+		}
+		assertEquals(MIN, mController.getTargetBitrate());
+		parse(bye(A));
+		for (ReceptionReport report : mReceiver.getReports()) assertEquals(report.getSSRC() == A, report.isBye());
+		assertTrue(mController.getTargetBitrate()>MIN);
+	}
+
+	/** A BYE from a receiver that never sent a report is ignored. */
+	public void testByeFromUnknownReceiver() {
+		parse(receiverReport(A, 0));
+		int before = mController.getTargetBitrate();
+		parse(bye(B));
+		assertEquals(1, mReceiver.getReports().size());
+		assertEquals(before, mController.getTargetBitrate());
+	}
+
+	private void parse(byte[] packet) {
+		mReceiver.parse(packet, packet.length, mSocket.getLocalAddress());
+	}
+
+	/** A Receiver Report with one report block, the fraction lost is out of 256. */
+	private static byte[] receiverReport(int ssrc, int fraction) {
+		byte[] packet = new byte[32];
+		packet[0] = (byte) 0x81;
+		packet[1] = (byte) RtcpReceiver.PT_RR;
+		packet[3] = 7;
+		setInt(packet, 4, ssrc);
+		setInt(packet, 8, SOURCE);
+		packet[12] = (byte) fraction;
+		return packet;
+	}
+
+	private static byte[] bye(int ssrc) {
+		byte[] packet = new byte[8];
+		packet[0] = (byte) 0x81;
+		packet[1] = (byte) RtcpReceiver.PT_BYE;
+		packet[3] = 1;
+		setInt(packet, 4, ssrc);
+		return packet;
+	}
+
+	private static void setInt(byte[] buffer, int offset, int n) {
+		for (int i=0;i<4;i++) buffer[offset+i] = (byte) (n>>(24-8*i));
+	}
+
+}
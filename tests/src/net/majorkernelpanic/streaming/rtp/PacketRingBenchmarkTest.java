@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.Semaphore;
+
+import junit.framework.TestCase;
+
+/**
+ * Hands the same packets from a producer thread to a consumer thread with the {@link PacketRing}
+ * with each of its wait strategies and with the pair of semaphores the {@link RtpSocket} used before, 
+ * and prints the cost of a packet with each of them. All must deliver every packet, in order.
+ */
+public class PacketRingBenchmarkTest extends TestCase {
+
+	// Size of the FIFO of the RtpSocket
+	private static final int CAPACITY = 300;
+	private static final int PACKETS = 1000000;
+	private static final int RUNS = 5;
+
+	private final byte[][] mBuffers = new byte[CAPACITY][RtpSocket.MTU];
+
+	public void testHandoff() throws Exception {
+		// The first runs warm up the JIT
+		long ring = Long.MAX_VALUE, park = Long.MAX_VALUE, semaphores = Long.MAX_VALUE;
+		for (int i=0;i<RUNS;i++) {
+			ring = Math.min(ring, runRing(PacketRing.WaitStrategy.DEFAULT));
+			park = Math.min(park, runRing(PacketRing.WaitStrategy.PARK));
+			semaphores = Math.min(semaphores, runSemaphores());
+		}
+		System.out.println("PacketRing: "+ring*1000000/PACKETS+" ns/packet, "+PACKETS*1000L/ring+" packets/s");
+		System.out.println("PacketRing (park): "+park*1000000/PACKETS+" ns/packet, "+PACKETS*1000L/park+" packets/s");
+		System.out.println("Semaphores: "+semaphores*1000000/PACKETS+" ns/packet, "+PACKETS*1000L/semaphores+" packets/s");
+	}
+
+	/** Returns how long it took to hand the packets over with the ring, in ms. */
+	private long runRing(PacketRing.WaitStrategy strategy) throws Exception {
+		final PacketRing ring = new PacketRing(CAPACITY);
+		ring.setWaitStrategy(strategy);
+		Consumer consumer = new Consumer() {
+			@Override
+			int take() throws InterruptedException {
+				int slot;
+				while ((slot = ring.poll(1000000))<0);
+				return slot;
+			}
+			@Override
+			void release() {
+				ring.release();
+			}
+		};
+		long start = System.nanoTime();
+		consumer.start();
+		for (int i=0;i<PACKETS;i++) {
+			write(ring.claim(), i);
+			ring.publish();
+		}
+		consumer.join();
+		assertNull(consumer.mError, consumer.mError);
+		return (System.nanoTime()-start)/1000000;
+	}
+
+	/** Returns how long it took to hand the packets over with the semaphores, in ms. */
+	private long runSemaphores() throws Exception {
+		final Semaphore requested = new Semaphore(CAPACITY), committed = new Semaphore(0);
+		Consumer consumer = new Consumer() {
+			private int mOut = 0;
+			@Override
+			int take() throws InterruptedException {
+				committed.acquire();
+				return mOut;
+			}
+			@Override
+			void release() {
+				if (++mOut>=CAPACITY) mOut = 0;
+				requested.release();
+			}
+		};
+		long start = System.nanoTime();
+		consumer.start();
+		int in = 0;
+		for (int i=0;i<PACKETS;i++) {
+			requested.acquire();
+			write(in, i);
+			committed.release();
+			if (++in>=CAPACITY) in = 0;
+		}
+		consumer.join();
+		assertNull(consumer.mError, consumer.mError);
+		return (System.nanoTime()-start)/1000000;
+	}
+
+	/** Writes a sequence number and a RTP header sized payload, as a packetizer would. */
+	private void write(int slot, int seq) {
+		byte[] buffer = mBuffers[slot];
+		buffer[0] = (byte) (seq>>24);
+		buffer[1] = (byte) (seq>>16);
+		buffer[2] = (byte) (seq>>8);
+		buffer[3] = (byte) seq;
+		for (int i=4;i<RtpSocket.RTP_HEADER_LENGTH;i++) buffer[i] = (byte) i;
+	}
+
+	/** Reads the packets and checks that none is lost or reordered. */
+	private abstract class Consumer extends Thread {
+
+		String mError = null;
+
+		abstract int take() throws InterruptedException;
+
+		abstract void release();
+
+		@Override
+		public void run() {
+			try {
+				for (int i=0;i<PACKETS;i++) {
+					byte[] buffer = mBuffers[take()];
+					int seq = (buffer[0]&0xFF)<<24 | (buffer[1]&0xFF)<<16 | (buffer[2]&0xFF)<<8 | (buffer[3]&0xFF);
+					// The producer would wait forever if the consumer stopped
+					if (seq != i && mError == null) mError = "Packet "+seq+" received instead of "+i;
+					release();
+				}
+			} catch (InterruptedException e) {
+				mError = "Interrupted";
+			}
+		}
+
+	}
+
+}
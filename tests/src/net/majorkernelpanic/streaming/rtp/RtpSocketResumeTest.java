@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+/**
+ * Resumes a destination of a {@link RtpSocket} fed by a fake packetizer, and checks that the
+ * first packet it receives is the one announced by RTP-Info, and how long it takes to get it.
+ */
+public class RtpSocketResumeTest extends TestCase {
+
+	// A packet every 2 ms, a key frame every 100 packets
+	private static final long PERIOD = 2000000;
+	private static final int GOP = 100;
+
+	// The receiver must get its first packet that fast after PLAY
+	private static final long MAX_LATENCY = 200;
+
+	private RtpSocket mSocket;
+	private DatagramSocket mPrimary, mReceiver;
+	private Thread mPacketizer;
+
+	@Override
+	protected void setUp() throws Exception {
+		mPrimary = new DatagramSocket(0);
+		mReceiver = new DatagramSocket(0);
+		mReceiver.setSoTimeout(2000);
+		mSocket = new RtpSocket();
+		mSocket.setClockFrequency(90000);
+		mSocket.setDestination(InetAddress.getLoopbackAddress(), mPrimary.getLocalPort(), mPrimary.getLocalPort()+1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mPacketizer != null) {
+			mPacketizer.interrupt();
+			mPacketizer.join();
+		}
+		mSocket.close();
+		mPrimary.close();
+		mReceiver.close();
+	}
+
+	/** The FIFO holds a backlog, the first packet sent after PLAY is older than the newest one committed. */
+	public void testLiveResume() throws Exception {
+		mSocket.setGopCacheSize(0);
+		mSocket.setCacheSize(100);
+		startPacketizer();
+		Thread.sleep(300);
+		resume(false);
+	}
+
+	/** The cached group of pictures is replayed first. */
+	public void testReplayResume() throws Exception {
+		startPacketizer();
+		Thread.sleep(300);
+		resume(true);
+	}
+
+	/** The destination is paused and resumed, the sequence numbers it receives stay contiguous. */
+	public void testPauseResume() throws Exception {
+		mSocket.setGopCacheSize(0);
+		startPacketizer();
+		Thread.sleep(100);
+		RtpDestination destination = resume(false);
+		Thread.sleep(50);
+		mSocket.pause(destination);
+		int last = drain();
+		assertTrue("No packet received before PAUSE", last>=0);
+		Thread.sleep(100);
+		assertFalse(mSocket.play(destination));
+		assertTrue(destination.awaitResume(MAX_LATENCY));
+		assertEquals("Sequence number after PAUSE", (last+1)&0xFFFF, destination.getResumeSequence());
+		DatagramPacket packet = receive();
+		assertEquals("First sequence number", destination.getResumeSequence(), getSequence(packet));
+		assertEquals("First timestamp", destination.getResumeTimestamp(), getTimestamp(packet));
+	}
+
+	/** Adds a held destination, resumes it and checks the first packet it receives. */
+	private RtpDestination resume(boolean replay) throws Exception {
+		RtpDestination destination = mSocket.addDestination(InetAddress.getLoopbackAddress(), mReceiver.getLocalPort(), mReceiver.getLocalPort()+1, true);
+		Thread.sleep(20);
+		long start = System.nanoTime();
+		assertEquals("Replay", replay, mSocket.play(destination));
+		assertTrue("No packet sent", destination.awaitResume(MAX_LATENCY));
+		DatagramPacket packet = receive();
+		long latency = (System.nanoTime()-start)/1000000;
+		assertTrue("Resume latency "+latency+" ms", latency<MAX_LATENCY);
+		assertEquals("SSRC", destination.getSSRC(), getInt(packet, 8));
+		assertEquals("First sequence number", destination.getResumeSequence(), getSequence(packet));
+		assertEquals("First timestamp", destination.getResumeTimestamp(), getTimestamp(packet));
+		return destination;
+	}
+
+	/** Commits a packet every PERIOD, the first byte of the payload is the index of the packet. */
+	private void startPacketizer() {
+		mPacketizer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					long ts = 0;
+					for (int i=0;!isInterrupted();i++) {
+						if (i%GOP == 0) mSocket.markKeyFrame();
+						byte[] buffer = mSocket.requestBuffer();
+						mSocket.updateTimestamp(ts += PERIOD);
+						buffer[RtpSocket.RTP_HEADER_LENGTH] = (byte) i;
+						mSocket.commitBuffer(100);
+						Thread.sleep(PERIOD/1000000);
+					}
+				} catch (Exception ignore) {}
+			}
+		};
+		mPacketizer.start();
+	}
+
+	private DatagramPacket receive() throws Exception {
+		DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+		mReceiver.receive(packet);
+		return packet;
+	}
+
+	/** Receives the packets already sent and returns the sequence number of the last one. */
+	private int drain() throws Exception {
+		int last = -1;
+		mReceiver.setSoTimeout(100);
+		try {
+			while (true) last = getSequence(receive());
+		} catch (java.net.SocketTimeoutException e) {
+			mReceiver.setSoTimeout(2000);
+		}
+		return last;
+	}
+
+	private static int getSequence(DatagramPacket packet) {
+		byte[] buffer = packet.getData();
+		return ((buffer[2]&0xFF)<<8) | (buffer[3]&0xFF);
+	}
+
+	private static long getTimestamp(DatagramPacket packet) {
+		return getInt(packet, 4)&0xFFFFFFFFL;
+	}
+
+	private static int getInt(DatagramPacket packet, int offset) {
+		byte[] buffer = packet.getData();
+		return ((buffer[offset]&0xFF)<<24) | ((buffer[offset+1]&0xFF)<<16) | ((buffer[offset+2]&0xFF)<<8) | (buffer[offset+3]&0xFF);
+	}
+
+}
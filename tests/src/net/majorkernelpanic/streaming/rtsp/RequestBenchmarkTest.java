@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ * 
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ * 
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtsp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Parses the same requests and writes the same responses with the parser and the writer of 
+ * the {@link RtspServer}, and with the BufferedReader and regex based ones it used before.
+ * Prints the requests per second and, on a JVM that can count them, the bytes allocated per request.
+ */
+public class RequestBenchmarkTest extends TestCase {
+
+	private static final int REQUESTS = 200000;
+	private static final int RUNS = 5;
+
+	private static final byte[][] REQUESTS_BYTES = {
+		("SETUP rtsp://192.168.1.10:8086/trackID=1 RTSP/1.0\r\n" +
+				"CSeq: 3\r\n" +
+				"User-Agent: LibVLC/2.1.5 (LIVE555 Streaming Media v2014.05.27)\r\n" +
+				"Transport: RTP/AVP;unicast;client_port=50000-50001\r\n\r\n").getBytes(),
+		("PLAY rtsp://192.168.1.10:8086/ RTSP/1.0\r\n" +
+				"CSeq: 5\r\n" +
+				"User-Agent: LibVLC/2.1.5 (LIVE555 Streaming Media v2014.05.27)\r\n" +
+				"Session: 1185d20035702ca\r\n" +
+				"Range: npt=0.000-\r\n\r\n").getBytes()
+	};
+
+	private static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
+	private static final Pattern regexHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+
+	private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream(1024);
+	private int mCheck = 0;
+
+	public void testParseAndRespond() throws Exception {
+		// Both parsers must agree
+		for (byte[] bytes : REQUESTS_BYTES) {
+			RtspServer.Request request = parse(bytes);
+			HashMap<String,String> headers = new HashMap<String,String>();
+			String[] line = parseBefore(reader(bytes), headers);
+			assertEquals(line[0], request.method);
+			assertEquals(line[1], request.uri);
+			assertEquals(headers.get("cseq").trim(), request.headers.get("cseq"));
+		}
+
+		// The first runs warm up the JIT
+		long after = Long.MAX_VALUE, before = Long.MAX_VALUE, afterBytes = -1, beforeBytes = -1;
+		for (int i=0;i<RUNS;i++) {
+			long bytes = getAllocatedBytes(), start = System.nanoTime();
+			runAfter();
+			after = Math.min(after, System.nanoTime()-start);
+			if (bytes>=0) afterBytes = (getAllocatedBytes()-bytes)/REQUESTS;
+			bytes = getAllocatedBytes();
+			start = System.nanoTime();
+			runBefore();
+			before = Math.min(before, System.nanoTime()-start);
+			if (bytes>=0) beforeBytes = (getAllocatedBytes()-bytes)/REQUESTS;
+		}
+		print("Before", before, beforeBytes);
+		print("After", after, afterBytes);
+		assertTrue(mCheck != 0);
+	}
+
+	private void runAfter() {
+		for (int i=0;i<REQUESTS;i++) {
+			RtspServer.Request request = parse(REQUESTS_BYTES[i&1]);
+			Matcher m = RtspServer.Request.regexClientPort.matcher(request.headers.get("transport") != null ? request.headers.get("transport") : "");
+			RtspServer.Response response = new RtspServer.Response(request);
+			response.status = RtspServer.Response.STATUS_OK;
+			response.attributes = m.find() ? "Transport: RTP/AVP/UDP;unicast;client_port="+m.group(1)+"-"+m.group(2)+"\r\n" : "";
+			mCheck += response.getBytes().length;
+		}
+	}
+
+	private void runBefore() throws IOException {
+		// The reader was created once per connection
+		BufferedReader input = new BufferedReader(new InputStreamReader(new Repeat()));
+		for (int i=0;i<REQUESTS;i++) {
+			HashMap<String,String> headers = new HashMap<String,String>();
+			parseBefore(input, headers);
+			String transport = headers.get("transport");
+			// The pattern used to be compiled for each SETUP
+			Matcher m = Pattern.compile("client_port=(\\d+)-(\\d+)",Pattern.CASE_INSENSITIVE).matcher(transport != null ? transport : "");
+			String attributes = m.find() ? "Transport: RTP/AVP/UDP;unicast;client_port="+m.group(1)+"-"+m.group(2)+"\r\n" : "";
+			int seqid = Integer.parseInt(headers.get("cseq").replace(" ",""));
+			String response = "RTSP/1.0 "+RtspServer.Response.STATUS_OK+"\r\n" +
+					"Server: "+RtspServer.SERVER_NAME+"\r\n" +
+					"Cseq: " + seqid + "\r\n" +
+					"Content-Length: 0\r\n" +
+					attributes +
+					"\r\n";
+			mOutput.reset();
+			mOutput.write(response.getBytes());
+			mCheck += mOutput.size();
+		}
+	}
+
+	private static RtspServer.Request parse(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		int length = RtspServer.Request.frame(buffer);
+		return RtspServer.Request.parse(bytes, 0, length);
+	}
+
+	private static BufferedReader reader(byte[] bytes) {
+		return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes)));
+	}
+
+	/** The parser of the RtspServer before, returns the method and the uri. */
+	private static String[] parseBefore(BufferedReader input, HashMap<String,String> headers) throws IOException {
+		String line;
+		Matcher matcher;
+		line = input.readLine();
+		matcher = regexMethod.matcher(line);
+		matcher.find();
+		String[] request = {matcher.group(1), matcher.group(2)};
+		while ((line = input.readLine()) != null && line.length()>3) {
+			matcher = regexHeader.matcher(line);
+			matcher.find();
+			headers.put(matcher.group(1).toLowerCase(Locale.US),matcher.group(2));
+		}
+		return request;
+	}
+
+	private static void print(String name, long duration, long bytes) {
+		System.out.println(name+": "+REQUESTS*1000000000L/duration+" requests/s"+
+				(bytes>=0 ? ", "+bytes+" bytes allocated per request" : ""));
+	}
+
+	/** Sends the requests again and again, as a client connection would. */
+	private static class Repeat extends InputStream {
+
+		private int mRequest = 0, mOffset = 0;
+
+		@Override
+		public int read() {
+			byte[] bytes = REQUESTS_BYTES[mRequest];
+			int b = bytes[mOffset++]&0xFF;
+			if (mOffset>=bytes.length) {
+				mOffset = 0;
+				mRequest ^= 1;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			byte[] bytes = REQUESTS_BYTES[mRequest];
+			length = Math.min(length, bytes.length-mOffset);
+			System.arraycopy(bytes, mOffset, buffer, offset, length);
+			mOffset += length;
+			if (mOffset>=bytes.length) {
+				mOffset = 0;
+				mRequest ^= 1;
+			}
+			return length;
+		}
+
+	}
+
+	/** Returns the bytes allocated by the thread so far, -1 if the JVM can't tell. */
+	private static long getAllocatedBytes() {
+		try {
+			Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) method.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+}